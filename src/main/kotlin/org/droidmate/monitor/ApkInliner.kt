@@ -37,29 +37,70 @@ import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.nio.file.StandardCopyOption
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 import kotlin.streams.toList
 
+/**
+ * @param inlinerMode How the AppGuard inliner is run. When it cannot be loaded in the current JVM, it is forked instead.
+ * @param cacheDir Directory of the inlined apks from previous runs, null to always inline. Apks are looked up by the hash
+ * of the input apk and of everything else the inlined apk is produced from, see [cacheKey].
+ * @param cacheMaxBytes Maximum size of the cache, the least recently used apks are deleted beyond it
+ * @param cacheMaxAgeMillis Maximum time since an apk of the cache was last used, 0 for no limit
+ */
 class ApkInliner @JvmOverloads constructor(
     private val stagingDir: Path,
-    private val sysCmdExecutor: ISysCmdExecutor = SysCmdExecutor()
+    private val sysCmdExecutor: ISysCmdExecutor = SysCmdExecutor(),
+    private val inlinerMode: InlinerMode = InlinerMode.InProcess,
+    cacheDir: Path? = null,
+    cacheMaxBytes: Long = ContentAddressedCache.defaultMaxBytes,
+    cacheMaxAgeMillis: Long = 0
 ) {
+    private val cache = cacheDir?.let { ContentAddressedCache(it, cacheMaxBytes, ".apk", cacheMaxAgeMillis) }
 
     private val jarsignerWrapper by lazy {
         JarsignerWrapper(sysCmdExecutor,
             EnvironmentConstants.jarsigner.toAbsolutePath(),
-            Resource("debug.keystore").extractTo(stagingDir))
+            debugKeystore)
     }
 
     private val inlinerJar by lazy { Jar(Resource("appguard-inliner.jar").extractTo(stagingDir)) }
 
     private val appGuardLoader by lazy { Dex(Resource("appguard-loader.dex").extractTo(stagingDir)) }
 
+    private val debugKeystore by lazy { Resource("debug.keystore").extractTo(stagingDir) }
+
+    private val inProcessInliner by lazy { InProcessInliner(inlinerJar.path.toAbsolutePath()) }
+
+    /**
+     * Set when the inliner could not be loaded in the current JVM, it is then forked for all apks
+     */
+    @Volatile
+    private var forceForked = false
+
     private val monitorClassName: String = "org.droidmate.monitor.Monitor"
 
     private val pathToMonitorApkOnAndroidDevice: String =
         EnvironmentConstants.AVD_dir_for_temp_files + EnvironmentConstants.monitor_apk_name
 
-    fun instrumentApk(inputPath: Path, outputDir: Path) {
+    /**
+     * Inlines the apk at [inputPath], or every apk in the directory [inputPath], into [outputDir].
+     *
+     * A failure to inline an apk does not stop the others from being inlined. Once all apks were processed, the error
+     * of the first apk which failed is thrown, with the errors of the other ones as suppressed exceptions, unless
+     * [throwOnFailure] is false: failures are then only reported in the returned summary.
+     *
+     * @param workers Number of apks inlined at the same time, each one with its own inliner and jarsigner processes
+     * @return Outcome of each apk
+     */
+    @JvmOverloads
+    fun instrumentApk(
+        inputPath: Path,
+        outputDir: Path,
+        workers: Int = 1,
+        throwOnFailure: Boolean = true
+    ): InliningSummary {
         if (!Files.exists(inputPath))
             Files.createDirectories(inputPath)
         if (!Files.isDirectory(inputPath))
@@ -76,13 +117,65 @@ class ApkInliner @JvmOverloads constructor(
 
             if (fileList.isEmpty()) {
                 log.warn("No target apks for inlining found. Searched directory: $inputPath.\nAborting inlining.")
-                return
+                return InliningSummary(emptyList(), 0)
             }
 
-            fileList.forEach { apk -> inlineApkIntoDir(apk, outputDir) }
+            return inlineApks(fileList, outputDir, workers, throwOnFailure)
+        } else {
+            return inlineApks(listOf(inputPath), outputDir, 1, throwOnFailure)
+        }
+    }
+
+    private fun inlineApks(apks: List<Path>, outputDir: Path, workers: Int, throwOnFailure: Boolean): InliningSummary {
+        val start = System.currentTimeMillis()
+        Files.createDirectories(stagingDir)
+
+        val results = if (workers <= 1 || apks.size == 1) {
+            apks.map { apk -> tryInlineApkIntoDir(apk, outputDir) }
         } else {
-            inlineApkIntoDir(inputPath, outputDir)
+            val executor = Executors.newFixedThreadPool(minOf(workers, apks.size))
+            try {
+                val futures = apks.map { apk -> executor.submit(Callable { tryInlineApkIntoDir(apk, outputDir) }) }
+                futures.mapIndexed { i, future ->
+                    try {
+                        future.get()
+                    } catch (e: ExecutionException) {
+                        InliningResult(apks[i], null, e.cause ?: e, 0)
+                    }
+                }
+            } finally {
+                executor.shutdownNow()
+            }
+        }
+
+        val summary = InliningSummary(results, System.currentTimeMillis() - start)
+        if (summary.failed.isEmpty())
+            log.info(summary.toString())
+        else
+            log.error(summary.toString())
+
+        if (throwOnFailure)
+            summary.throwFailures()
+        return summary
+    }
+
+    private fun tryInlineApkIntoDir(apk: Path, outputDir: Path): InliningResult {
+        val start = System.currentTimeMillis()
+        var inlinedApk: Path? = null
+        var error: Throwable? = null
+
+        try {
+            inlinedApk = inlineApkIntoDir(apk, outputDir)
+            log.info("Inlined $apk into $inlinedApk")
+        } catch (e: Exception) {
+            error = e
+        } catch (e: AssertionError) {
+            error = e
         }
+
+        if (error != null)
+            log.error("Failed to inline $apk: ${error.message}", error)
+        return InliningResult(apk, inlinedApk, error, System.currentTimeMillis() - start)
     }
 
     /**
@@ -102,6 +195,9 @@ class ApkInliner @JvmOverloads constructor(
      *
      *   /abc/def/out/calc-inlined.apk
      *
+     * </p><p>
+     * The apk is inlined and signed in its own directory in the staging directory, which is deleted afterwards, so
+     * that several apks can be inlined at the same time and nothing is written next to the input apk.
      * </p>
      *
      * @param apk
@@ -109,13 +205,56 @@ class ApkInliner @JvmOverloads constructor(
      * @return
      */
     private fun inlineApkIntoDir(apk: Path, outputDir: Path): Path {
-        val unsignedInlinedApk = executeInlineApk(apk)
-        assert(unsignedInlinedApk.fileName.toString().endsWith("-inlined.apk"))
+        val key = cache?.let { cacheKey(apk) }
+        if (cache != null && key != null) {
+            val cachedApk = outputDir.resolve(apk.fileName.toString().replace(".apk", "-inlined.apk"))
+            if (cache.get(key, cachedApk)) {
+                log.info("Inlined apk for $apk found in the cache")
+                return cachedApk
+            }
+        }
+
+        val apkStagingDir = Files.createTempDirectory(stagingDir, apk.fileName.toString().removeSuffix(".apk") + "-")
+        try {
+            val stagedApk = Files.copy(apk, apkStagingDir.resolve(apk.fileName.toString()))
+
+            val unsignedInlinedApk = executeInlineApk(stagedApk)
+            assert(unsignedInlinedApk.fileName.toString().endsWith("-inlined.apk"))
+
+            val signedInlinedApk = jarsignerWrapper.signWithDebugKey(unsignedInlinedApk)
+
+            if (cache != null && key != null)
+                cache.put(key, signedInlinedApk)
+
+            return Files.move(signedInlinedApk, outputDir.resolve(signedInlinedApk.fileName.toString()),
+                StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            apkStagingDir.toFile().deleteRecursively()
+        }
+    }
 
-        val signedInlinedApk = jarsignerWrapper.signWithDebugKey(unsignedInlinedApk)
+    /**
+     * Hash of the static inputs of the inliner, computed once
+     */
+    private val toolsKey by lazy {
+        ContentAddressedCache.Key()
+            .add(inlinerJar.path)
+            .add(appGuardLoader.path)
+            .add(debugKeystore)
+            .add(pathToMonitorApkOnAndroidDevice)
+            .add(monitorClassName)
+            .build()
+    }
 
-        return Files.move(signedInlinedApk, outputDir.resolve(signedInlinedApk.fileName.toString()),
-            StandardCopyOption.REPLACE_EXISTING)
+    /**
+     * @return Key of the inlined apk in the [cache]: hash of the input apk, the inliner jar, the AppGuard loader, the
+     * signing key, and the monitor class name and path given to the inliner
+     */
+    private fun cacheKey(apk: Path): String {
+        return ContentAddressedCache.Key()
+            .add(apk)
+            .add(toolsKey)
+            .build()
     }
 
     private fun executeInlineApk(targetApk: Path): Path {
@@ -123,17 +262,32 @@ class ApkInliner @JvmOverloads constructor(
         val inlinedApkPath = targetApk.resolveSibling(newFileName)
         assert(Files.notExists(inlinedApkPath))
 
-        sysCmdExecutor.execute(
-            "Inlining $targetApk",
-            "java",
-            "-jar",
-            inlinerJar.path.toString(),
-            targetApk.toString(),
-            appGuardLoader.path.toString(),
+        val args = arrayOf(
+            targetApk.toAbsolutePath().toString(),
+            appGuardLoader.path.toAbsolutePath().toString(),
             pathToMonitorApkOnAndroidDevice,
             monitorClassName)
 
-        assert(Files.exists(inlinedApkPath))
+        if (inlinerMode == InlinerMode.InProcess && !forceForked) {
+            try {
+                inProcessInliner.inline(args)
+            } catch (e: ReflectiveOperationException) {
+                log.warn("Cannot run the inliner in-process, forking it for each apk from now on: $e")
+                forceForked = true
+            }
+        }
+
+        if (inlinerMode == InlinerMode.Forked || forceForked) {
+            sysCmdExecutor.execute(
+                "Inlining $targetApk",
+                "java",
+                "-jar",
+                inlinerJar.path.toString(),
+                *args)
+        }
+
+        // The inliner only reports errors on its output, without failing
+        check(Files.exists(inlinedApkPath)) { "The inliner did not produce $inlinedApkPath" }
         return inlinedApkPath
     }
 
@@ -142,17 +296,22 @@ class ApkInliner @JvmOverloads constructor(
 
         @JvmStatic
         fun main(args: Array<String>) {
-            if (args.size != 2) {
+            if (args.size !in 2..3) {
                 println("Usage instructions: The following configurations are supported:\n" +
-                        "-- <APK FILE OR SOURCE DIR> <OUTPUT DIR>")
+                        "-- <APK FILE OR SOURCE DIR> <OUTPUT DIR> [<NUMBER OF WORKERS>]")
                 return
             }
 
             val srcPath = Paths.get(args[0])
             val dstDir = Paths.get(args[1])
+            val workers = if (args.size > 2) args[2].toInt() else 1
             val resourceDir = Paths.get("tmp")
-            ApkInliner(resourceDir).instrumentApk(srcPath, dstDir)
+            val summary = ApkInliner(resourceDir).instrumentApk(srcPath, dstDir, workers, throwOnFailure = false)
             println("Inlined APK from $srcPath into $dstDir")
+            println(summary)
+
+            if (summary.failed.isNotEmpty())
+                System.exit(1)
         }
     }
 }
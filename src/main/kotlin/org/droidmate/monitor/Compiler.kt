@@ -36,6 +36,11 @@ import java.nio.file.Paths
 
 class Compiler {
     companion object {
+        /**
+         * Name of the (optional) monitor configuration file, read by the monitor from the device's temporary files directory
+         */
+        const val monitor_config_file_name = "monitor_config.properties"
+
         @JvmStatic
         fun main(args: Array<String>) {
             if (args.isEmpty() || args.size > 2) {
@@ -98,12 +103,24 @@ class Compiler {
          *
          * @param dstDir Directory where the compile APK will be stored
          * @param apiFile File to be read. If none is chosen, use default API list
+         * @param mode Kind of logs produced by the monitor, or [MonitorMode.CountersOnly] to only count API calls
+         * @param cacheDir Directory of the monitor apks built previously, null to always build the apk. An apk for the
+         * same APIs, mode and monitor sources is taken from the cache instead of being built again.
+         * @param cacheMaxBytes Maximum size of the cache, the least recently used apks are deleted beyond it
+         * @param cacheMaxAgeMillis Maximum time since an apk of the cache was last used, 0 for no limit
          * @throws IOException if the API file cannot be read
          */
         @JvmStatic
         @JvmOverloads
         @Throws(IOException::class)
-        fun compile(dstDir: Path, apiFile: Path? = null): Path {
+        fun compile(
+            dstDir: Path,
+            apiFile: Path? = null,
+            mode: MonitorMode = MonitorMode.Text,
+            cacheDir: Path? = null,
+            cacheMaxBytes: Long = ContentAddressedCache.defaultMaxBytes,
+            cacheMaxAgeMillis: Long = 0
+        ): Path {
             val methods = if (apiFile != null) {
                 generateMethods(apiFile)
             } else {
@@ -111,7 +128,7 @@ class Compiler {
                     generateMethods(it)
                 }
             }
-            return compile(dstDir, methods)
+            return compile(dstDir, methods, mode, cacheDir, cacheMaxBytes, cacheMaxAgeMillis)
         }
 
         /**
@@ -119,11 +136,24 @@ class Compiler {
          *
          * @param dstDir Directory where the compile APK will be stored
          * @param methods List of APIs to inject into to monitor
+         * @param mode Kind of logs produced by the monitor, or [MonitorMode.CountersOnly] to only count API calls
+         * @param cacheDir Directory of the monitor apks built previously, null to always build the apk, see [MonitorProject]
+         * @param cacheMaxBytes Maximum size of the cache, the least recently used apks are deleted beyond it
+         * @param cacheMaxAgeMillis Maximum time since an apk of the cache was last used, 0 for no limit
          * @throws IOException if the API file cannot be read
          */
         @JvmStatic
-        fun compile(dstDir: Path, methods: List<ApiMethodSignature>): Path {
-            return MonitorProject(methods).use {
+        @JvmOverloads
+        fun compile(
+            dstDir: Path,
+            methods: List<ApiMethodSignature>,
+            mode: MonitorMode = MonitorMode.Text,
+            cacheDir: Path? = null,
+            cacheMaxBytes: Long = ContentAddressedCache.defaultMaxBytes,
+            cacheMaxAgeMillis: Long = 0
+        ): Path {
+            val cache = cacheDir?.let { ContentAddressedCache(it, cacheMaxBytes, ".apk", cacheMaxAgeMillis) }
+            return MonitorProject(methods, mode, cache = cache).use {
                 it.instrument(dstDir)
             }
         }
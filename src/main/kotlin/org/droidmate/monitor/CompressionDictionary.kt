@@ -0,0 +1,106 @@
+// DroidMate, an automated execution generator for Android apps.
+// Copyright (C) 2012-2018. Saarland University
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Current Maintainers:
+// Nataniel Borges Jr. <nataniel dot borges at cispa dot saarland>
+// Jenny Hotzkow <jenny dot hotzkow at cispa dot saarland>
+//
+// Former Maintainers:
+// Konrad Jamrozik <jamrozik at st dot cs dot uni-saarland dot de>
+//
+// web: www.droidmate.org
+
+package org.droidmate.monitor
+
+import org.droidmate.device.apis.ApiMethodSignature
+import java.io.ByteArrayOutputStream
+import java.util.zip.Inflater
+
+/**
+ * Preset dictionary for the Deflate compression of the monitor's responses, negotiated by hosts using the binary
+ * protocol. The monitor and the host must build it from the same list of monitored APIs. The zlib header of each
+ * compressed response contains the Adler-32 checksum of the dictionary, which [inflate] checks.
+ */
+object CompressionDictionary {
+    /**
+     * Deflate only looks back this many bytes, anything before is useless
+     */
+    private const val maxSize = 32 * 1024
+
+    /**
+     * Fragments found in every log, placed last in the dictionary as Deflate encodes the closest matches the shortest
+     */
+    private val commonFragments = listOf(
+        "dalvik.system.VMStack.getThreadStackTrace(Native Method)->java.lang.Thread.getStackTrace(Thread.java:",
+        ")->org.droidmate.monitor.Monitor.",
+        "';stacktrace: '",
+        "TId: "
+    )
+
+    @JvmStatic
+    fun build(methods: List<ApiMethodSignature>): ByteArray {
+        return buildString(methods).toByteArray(Charsets.UTF_8)
+    }
+
+    /**
+     * @see build
+     */
+    internal fun buildString(methods: List<ApiMethodSignature>): String {
+        val classes = methods
+            .flatMap { it.paramClasses + it.returnClass }
+            .distinct()
+            .sorted()
+            .joinToString("") { "'$it' " }
+
+        // Same layout as the logs, see Monitor.getPayload
+        val signatures = methods.joinToString("") {
+            ";objCls: '${it.objectClass}';mthd: '${it.methodName}';retCls: '${it.returnClass}';params: "
+        }
+
+        val dictionary = classes + signatures + commonFragments.joinToString("")
+        return dictionary.takeLast(maxSize)
+    }
+
+    /**
+     * Decompresses the payload of a response sent with the deflate flag.
+     *
+     * @param dictionary Dictionary from [build], for the APIs of the monitor which sent the response
+     */
+    @JvmStatic
+    fun inflate(data: ByteArray, dictionary: ByteArray): ByteArray {
+        val inflater = Inflater()
+        try {
+            inflater.setInput(data)
+            val output = ByteArrayOutputStream(data.size * 4)
+            val buffer = ByteArray(8 * 1024)
+
+            while (!inflater.finished()) {
+                val count = inflater.inflate(buffer)
+                if (count == 0) {
+                    when {
+                        inflater.needsDictionary() -> inflater.setDictionary(dictionary)
+                        inflater.needsInput() -> throw IllegalArgumentException("Truncated compressed response")
+                    }
+                }
+                output.write(buffer, 0, count)
+            }
+
+            return output.toByteArray()
+        } finally {
+            inflater.end()
+        }
+    }
+}
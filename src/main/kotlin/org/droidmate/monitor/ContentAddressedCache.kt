@@ -0,0 +1,184 @@
+// DroidMate, an automated execution generator for Android apps.
+// Copyright (C) 2012-2018. Saarland University
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Current Maintainers:
+// Nataniel Borges Jr. <nataniel dot borges at cispa dot saarland>
+// Jenny Hotzkow <jenny dot hotzkow at cispa dot saarland>
+//
+// Former Maintainers:
+// Konrad Jamrozik <jamrozik at st dot cs dot uni-saarland dot de>
+//
+// web: www.droidmate.org
+
+package org.droidmate.monitor
+
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import kotlin.streams.toList
+
+/**
+ * On-disk cache of files, each one stored under the hash of everything it was produced from (see [Key]).
+ *
+ * Entries are files named after their key in [directory]. Reading an entry updates its modification time, which is
+ * used as its last access time: when the cache grows over [maxBytes], the least recently used entries are deleted.
+ * Entries not used for more than [maxAgeMillis] are deleted as well.
+ * Several threads (or processes) may use the same directory, entries are written to a temporary file first and then
+ * moved in place atomically.
+ *
+ * @param extension Extension of the entries, e.g. ".apk"
+ * @param maxAgeMillis Maximum time since the last use of an entry, 0 for no limit
+ */
+class ContentAddressedCache @JvmOverloads constructor(
+    val directory: Path,
+    private val maxBytes: Long,
+    private val extension: String = "",
+    private val maxAgeMillis: Long = 0
+) {
+    companion object {
+        private val log by lazy { LoggerFactory.getLogger(ContentAddressedCache::class.java) }
+
+        /**
+         * Default maximum size of the caches of apks, in bytes
+         */
+        const val defaultMaxBytes = 2L * 1024 * 1024 * 1024
+    }
+
+    /**
+     * Builds a key as the SHA-256 hash of files and strings, in the order they are added.
+     */
+    class Key {
+        private val digest = MessageDigest.getInstance("SHA-256")
+
+        fun add(file: Path): Key {
+            Files.newInputStream(file).use { input ->
+                val buffer = ByteArray(64 * 1024)
+                var read = input.read(buffer)
+                while (read >= 0) {
+                    digest.update(buffer, 0, read)
+                    read = input.read(buffer)
+                }
+            }
+            return this
+        }
+
+        fun add(value: String): Key {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            // The length prevents different sequences of strings from having the same concatenation
+            digest.update("${bytes.size}:".toByteArray(Charsets.UTF_8))
+            digest.update(bytes)
+            return this
+        }
+
+        fun build(): String = digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    init {
+        Files.createDirectories(directory)
+    }
+
+    private fun entry(key: String): Path = directory.resolve(key + extension)
+
+    /**
+     * Creates [target] as a copy of the entry of [key].
+     *
+     * @param link If true, [target] is created as a hard link to the entry if possible, which saves copying large files.
+     * Only for files which are never modified in place afterwards, as this would modify the entry too.
+     * @return If the entry was found, false if [target] was not created
+     */
+    @JvmOverloads
+    fun get(key: String, target: Path, link: Boolean = false): Boolean {
+        val entry = entry(key)
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()))
+            Files.deleteIfExists(target)
+            if (!link) {
+                Files.copy(entry, target)
+                return true
+            }
+
+            try {
+                Files.createLink(target, entry)
+            } catch (e: IOException) {
+                // Other file system, or links not supported
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING)
+            } catch (e: UnsupportedOperationException) {
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING)
+            }
+            return true
+        } catch (e: NoSuchFileException) {
+            // Not cached, or evicted in the meantime
+            return false
+        }
+    }
+
+    /**
+     * Stores a copy of [file] as the entry of [key], then evicts entries if the cache is too large. Files larger than the
+     * cache are not stored.
+     */
+    fun put(key: String, file: Path) {
+        if (Files.size(file) > maxBytes)
+            return
+
+        val temp = Files.createTempFile(directory, key, ".tmp")
+        try {
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING)
+            try {
+                Files.move(temp, entry(key), StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: FileAlreadyExistsException) {
+                // Stored by someone else in the meantime, with the same content
+            }
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+
+        evict()
+    }
+
+    /**
+     * Deletes the entries not used for too long, then the least recently used entries until the cache is not larger than
+     * its maximum size.
+     */
+    @Synchronized
+    fun evict() {
+        val entries = Files.list(directory).use { files ->
+            files.toList().filter { it.fileName.toString().endsWith(extension) && !it.fileName.toString().endsWith(".tmp") }
+        }.mapNotNull { file ->
+            try {
+                Triple(file, Files.size(file), Files.getLastModifiedTime(file).toMillis())
+            } catch (e: NoSuchFileException) {
+                null
+            }
+        }
+
+        val oldestAllowed = if (maxAgeMillis > 0) System.currentTimeMillis() - maxAgeMillis else Long.MIN_VALUE
+        var size = entries.map { it.second }.sum()
+        for ((file, fileSize, lastUsed) in entries.sortedBy { it.third }) {
+            if (size <= maxBytes && lastUsed >= oldestAllowed)
+                break
+
+            log.debug("Evicting $file from the cache")
+            Files.deleteIfExists(file)
+            size -= fileSize
+        }
+    }
+}
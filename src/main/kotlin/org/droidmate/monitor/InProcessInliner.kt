@@ -0,0 +1,84 @@
+// DroidMate, an automated execution generator for Android apps.
+// Copyright (C) 2012-2018. Saarland University
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Current Maintainers:
+// Nataniel Borges Jr. <nataniel dot borges at cispa dot saarland>
+// Jenny Hotzkow <jenny dot hotzkow at cispa dot saarland>
+//
+// Former Maintainers:
+// Konrad Jamrozik <jamrozik at st dot cs dot uni-saarland dot de>
+//
+// web: www.droidmate.org
+
+package org.droidmate.monitor
+
+import java.lang.reflect.InvocationTargetException
+import java.net.URL
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.jar.Attributes
+import java.util.jar.JarFile
+
+/**
+ * Calls the entry point of the AppGuard inliner jar in the current JVM, instead of starting a JVM for each apk.
+ *
+ * Each call loads the jar with a class loader of its own, which does not see the classes of the monitor generator and
+ * is closed once the call returns. Calls thus never share any static state of the inliner, neither with concurrent
+ * calls nor with previous ones.
+ *
+ * @param inlinerJar Path of `appguard-inliner.jar`
+ */
+internal class InProcessInliner(private val inlinerJar: Path) {
+    companion object {
+        private const val mainClassName = "com.srt.appguard.Main"
+    }
+
+    /**
+     * The inliner jar and the jars of the `Class-Path` of its manifest which are next to it, as `java -jar` would load
+     */
+    private val classPath: Array<URL> by lazy {
+        val manifestClassPath = JarFile(inlinerJar.toFile()).use { jar ->
+            jar.manifest?.mainAttributes?.getValue(Attributes.Name.CLASS_PATH)
+        }
+
+        val dependencies = manifestClassPath.orEmpty()
+            .split(" ")
+            .filter { it.isNotBlank() }
+            .map { inlinerJar.resolveSibling(it) }
+            .filter { Files.exists(it) }
+
+        (listOf(inlinerJar) + dependencies).map { it.toUri().toURL() }.toTypedArray()
+    }
+
+    /**
+     * Runs the inliner with the command line arguments [args]. Paths must be absolute, the inliner resolves relative
+     * paths against the working directory of the JVM.
+     *
+     * @throws ReflectiveOperationException if the entry point of the inliner cannot be loaded
+     */
+    fun inline(args: Array<String>) {
+        // The parent is the loader of the platform classes, not the one of the application
+        URLClassLoader(classPath, ClassLoader.getSystemClassLoader().parent).use { classLoader ->
+            val main = classLoader.loadClass(mainClassName).getMethod("main", Array<String>::class.java)
+            try {
+                main.invoke(null, args as Any)
+            } catch (e: InvocationTargetException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+}
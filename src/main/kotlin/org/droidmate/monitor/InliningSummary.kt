@@ -0,0 +1,79 @@
+// DroidMate, an automated execution generator for Android apps.
+// Copyright (C) 2012-2018. Saarland University
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Current Maintainers:
+// Nataniel Borges Jr. <nataniel dot borges at cispa dot saarland>
+// Jenny Hotzkow <jenny dot hotzkow at cispa dot saarland>
+//
+// Former Maintainers:
+// Konrad Jamrozik <jamrozik at st dot cs dot uni-saarland dot de>
+//
+// web: www.droidmate.org
+
+package org.droidmate.monitor
+
+import java.nio.file.Path
+
+/**
+ * Outcome of inlining a single apk
+ *
+ * @param inlinedApk Signed inlined apk in the output directory, null if inlining failed
+ * @param error Why inlining failed, null if it succeeded
+ */
+data class InliningResult(
+    val apk: Path,
+    val inlinedApk: Path?,
+    val error: Throwable?,
+    val durationMillis: Long
+) {
+    val succeeded: Boolean
+        get() = error == null
+}
+
+/**
+ * Outcome of [ApkInliner.instrumentApk], one result per apk, in the order of the input apks
+ */
+data class InliningSummary(val results: List<InliningResult>, val durationMillis: Long) {
+    val succeeded: List<InliningResult>
+        get() = results.filter { it.succeeded }
+
+    val failed: List<InliningResult>
+        get() = results.filterNot { it.succeeded }
+
+    /**
+     * Throws the error of the first apk which failed, with the errors of the other ones as suppressed exceptions.
+     * Does nothing if all apks were inlined.
+     */
+    fun throwFailures() {
+        val errors = failed.mapNotNull { it.error }
+        if (errors.isEmpty())
+            return
+
+        val error = errors.first()
+        errors.drop(1).forEach { error.addSuppressed(it) }
+        throw error
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder()
+        sb.append("Inlined ${succeeded.size} of ${results.size} apks in ${durationMillis / 1000.0} s")
+        if (failed.isNotEmpty()) {
+            sb.append(", ${failed.size} failed:")
+            failed.forEach { sb.append(System.lineSeparator()).append("  ${it.apk.fileName}: ${it.error}") }
+        }
+        return sb.toString()
+    }
+}
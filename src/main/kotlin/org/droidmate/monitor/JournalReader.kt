@@ -0,0 +1,196 @@
+// DroidMate, an automated execution generator for Android apps.
+// Copyright (C) 2012-2018. Saarland University
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Current Maintainers:
+// Nataniel Borges Jr. <nataniel dot borges at cispa dot saarland>
+// Jenny Hotzkow <jenny dot hotzkow at cispa dot saarland>
+//
+// Former Maintainers:
+// Konrad Jamrozik <jamrozik at st dot cs dot uni-saarland dot de>
+//
+// web: www.droidmate.org
+
+package org.droidmate.monitor
+
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.streams.toList
+
+/**
+ * API log recovered from the on-device log store of the monitor
+ *
+ * @param api Policy key of the API, see [getPolicyKey]
+ * @param apiId Position of the API in the list of the monitor, -1 if unknown
+ * @param payload Log text, null for structured records
+ * @param stackId Id of the interned stack trace, -1 if none
+ * @param params Arguments of structured records, null for text logs
+ */
+data class JournalEvent(
+    val api: String?,
+    val apiId: Int,
+    val threadId: Long,
+    val epochNanos: Long,
+    val payload: String?,
+    val stackId: Int,
+    val params: List<String?>?
+)
+
+/**
+ * Range of the log store, as answered by the monitor to the `getLogStore` command
+ *
+ * @param endOffset Offset to send back to acknowledge the range
+ */
+data class JournalRegion(val startOffset: Long, val endOffset: Long, val events: List<JournalEvent>)
+
+/**
+ * Decodes the log store which monitors write when configured with `logs.store=Journal` or `logs.store=MappedFile`.
+ *
+ * The store is a directory of segment files, [storeDirectoryName] in the files directory of the app. After the app
+ * process died, the host recovers its logs either from a monitor started again in the app (the store is reopened, see
+ * `getLogStore`), or by copying the directory from the device and reading it with [readDirectory].
+ */
+object JournalReader {
+    const val storeDirectoryName = "droidmate_monitor_logs"
+
+    private const val magic = 0x444D4C53
+    private const val version = 1
+    private const val headerSize = 32
+
+    /**
+     * @return Directory of the log store on the device, for the app [packageName]
+     */
+    @JvmStatic
+    fun deviceDirectory(packageName: String): String = "/data/data/$packageName/files/$storeDirectoryName"
+
+    /**
+     * Reads the segment files of a log store, in order. Records interrupted by a crash are not included.
+     *
+     * @param includeAcknowledged Whether to include the logs the host already acknowledged and which are still on disk
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun readDirectory(directory: Path, includeAcknowledged: Boolean = false): List<JournalEvent> {
+        // Names contain the zero padded base offset, so they sort in the order of the segments
+        val segments = Files.list(directory).use { files ->
+            files.filter { it.fileName.toString().endsWith(".seg") }
+                .sorted()
+                .toList()
+        }
+
+        if (segments.isEmpty())
+            return emptyList()
+
+        val buffers = segments.map { ByteBuffer.wrap(Files.readAllBytes(it)) }
+        buffers.forEach { checkHeader(it) }
+
+        // The acknowledged offset is kept up to date in the first segment only
+        val ackOffset = if (includeAcknowledged) Long.MIN_VALUE else buffers.first().getLong(16)
+
+        return buffers.flatMap { buffer ->
+            val baseOffset = buffer.getLong(8)
+            readRecords(buffer, headerSize, buffer.capacity()) { position -> baseOffset + position - headerSize >= ackOffset }
+        }
+    }
+
+    /**
+     * Decodes the answer of the monitor to the `getLogStore` command.
+     */
+    @JvmStatic
+    fun decodeRegion(bytes: ByteArray): JournalRegion {
+        val buffer = ByteBuffer.wrap(bytes)
+        val startOffset = readVarLong(buffer)
+        val endOffset = readVarLong(buffer)
+
+        return JournalRegion(startOffset, endOffset, readRecords(buffer, buffer.position(), buffer.limit()) { true })
+    }
+
+    private fun checkHeader(buffer: ByteBuffer) {
+        if (buffer.capacity() < headerSize || buffer.getInt(0) != magic)
+            throw IOException("Not a segment of the monitor's log store")
+        if (buffer.getInt(4) != version)
+            throw IOException("Unsupported log store version ${buffer.getInt(4)}")
+    }
+
+    private fun readRecords(buffer: ByteBuffer, start: Int, end: Int, include: (Int) -> Boolean): List<JournalEvent> {
+        val events = mutableListOf<JournalEvent>()
+        var position = start
+
+        while (position + 4 <= end) {
+            val length = buffer.getInt(position)
+            // A length of 0 marks the end of the records, see MappedLogStore
+            if (length <= 0 || position + 4 + length > end)
+                break
+
+            if (include(position)) {
+                val record = buffer.duplicate()
+                record.position(position + 4)
+                record.limit(position + 4 + length)
+                events.add(readEvent(record))
+            }
+            position += 4 + length
+        }
+
+        return events
+    }
+
+    /**
+     * Same encoding as `ApiLogSpillFile.encodeEvent` in the monitor
+     */
+    private fun readEvent(record: ByteBuffer): JournalEvent {
+        val api = readString(record)
+        val apiId = readVarLong(record).toInt() - 1
+        val threadId = readVarLong(record)
+        val epochNanos = readVarLong(record)
+        val payload = readString(record)
+        val stackId = readVarLong(record).toInt() - 1
+        val paramCount = readVarLong(record).toInt() - 1
+        val params = if (paramCount >= 0) (0 until paramCount).map { readString(record) } else null
+
+        return JournalEvent(api, apiId, threadId, epochNanos, payload, stackId, params)
+    }
+
+    private fun readVarLong(buffer: ByteBuffer): Long {
+        var result = 0L
+        var shift = 0
+        while (true) {
+            if (!buffer.hasRemaining())
+                throw EOFException()
+            if (shift >= 64)
+                throw IOException("Malformed varint")
+
+            val b = buffer.get().toInt()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0)
+                return result
+            shift += 7
+        }
+    }
+
+    private fun readString(buffer: ByteBuffer): String? {
+        val length = readVarLong(buffer).toInt() - 1
+        if (length < 0)
+            return null
+        if (length > buffer.remaining())
+            throw EOFException()
+
+        val bytes = ByteArray(length)
+        buffer.get(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
@@ -61,7 +61,42 @@ private val nl = System.lineSeparator()
 
 private const val ind4 = "    "
 
-internal fun ApiMethodSignature.toRedirectCode(): String {
+/**
+ * Key used by the monitor to look up the policies of this API: its short signature without whitespaces,
+ * exactly as the method signatures are normalized when the policies file is read.
+ */
+internal fun ApiMethodSignature.getPolicyKey(): String {
+    return this.getShortSignature().replace(Regex("\\s+"), "")
+}
+
+/**
+ * Entry of the method in the API table of the monitor (`Monitor.apis`), at the position given by its id.
+ */
+internal fun ApiMethodSignature.toApiTableEntry(): String {
+    val paramTypes = this.paramClasses.joinToString(", ") { "\"$it\"" }
+    return "new ApiTable.Entry(\"${this.getPolicyKey()}\", \"${this.objectClass}\", \"${this.methodName}\", " +
+        "\"${this.returnClass}\", new String[]{$paramTypes}),"
+}
+
+/**
+ * `logID` expression of the API list which produces the layout of `Monitor.getPayload` in the monitor. APIs with this
+ * expression are logged from their raw arguments, rendered by the monitor only for the calls it keeps.
+ */
+internal fun ApiMethodSignature.getDefaultLogId(): String {
+    val params = if (this.paramClasses.isEmpty())
+        " "
+    else
+        this.paramClasses.withIndex().joinToString("") { (x, type) -> " '$type' '\" +objectToString(p$x)+ \"'" }
+
+    return "\"TId: \"+threadId+\";objCls: '${this.objectClass}';mthd: '${this.methodName}';retCls: '${this.returnClass}';" +
+        "params:$params;stacktrace: '\"+stackTrace+\"\\'\""
+}
+
+/**
+ * @param apiId Position of the method in the API list of the monitor, which is its id in the API table
+ * @param mode Which kind of log the generated code produces
+ */
+internal fun ApiMethodSignature.toRedirectCode(apiId: Int, mode: MonitorMode): String {
     return if (this.objectClass.startsWith("android.test."))
         ""
     else {
@@ -71,47 +106,68 @@ internal fun ApiMethodSignature.toRedirectCode(): String {
         out.append(String.format("public static %s %s", this.returnClass, this.name) + nl)
         out.append("{$nl")
 
-        /**
-         * MonitorJavaTemplate and MonitorTcpServer have calls to Log.i() and Log.v() in them, whose tag starts with
-         * MonitorConstants.tag_prefix. This conditional ensures
-         * such calls are not being monitored,
-         * as they are DroidMate's monitor internal code, not the behavior of the app under exploration.
-         */
-        if (this.objectClass == "android.util.Log" && (this.methodName in arrayListOf(
-                "v",
-                "d",
-                "i",
-                "w",
-                "e"
-            )) && paramClasses.size in arrayListOf(2, 3)
-        ) {
-            out.append(ind4 + ind4 + "if (p0.startsWith(\"${MonitorConstants.tag_prefix}\"))" + nl)
-            when {
-                paramClasses.size == 2 -> out.append("$ind4$ind4  return OriginalMethod.by(new \$() {}).invokeStatic(p0, p1);$nl")
-                paramClasses.size == 3 -> out.append("$ind4$ind4  return OriginalMethod.by(new \$() {}).invokeStatic(p0, p1, p2);$nl")
-                else -> assert(false) { "paramClasses.size() is not in [2,3]. It is ${paramClasses.size}" }
+        // Monitored APIs called by the monitor itself (e.g., its own calls to Log) go straight to the original method
+        out.append(ind4 + "MonitorGuard guard = MonitorGuard.enter();" + nl)
+        out.append(ind4 + "if (guard == null) {" + nl)
+        out.append(ind4 + ind4 + this.invokeCode.trim() + nl)
+        if (this.returnClass == "void")
+            out.append(ind4 + ind4 + "return;" + nl)
+        out.append("$ind4}$nl")
+
+        out.append(ind4 + "ApiPolicy policy;" + nl)
+        out.append(ind4 + "try {" + nl)
+
+        // Sampled out and rate limited calls are only counted, before anything is computed for the log.
+        // The arguments are passed as they are, the monitor only renders them for the calls it keeps.
+        val args = if (this.paramClasses.isEmpty())
+            "NO_ARGS"
+        else
+            "new Object[]{" + (0 until this.paramClasses.size).joinToString(", ") { x -> "p$x" } + "}"
+        when (mode) {
+            MonitorMode.Text -> {
+                out.append(ind4 + ind4 + "if (shouldLog($apiId)) {" + nl)
+                out.append(ind4 + ind4 + ind4 + "String stackTrace = getStackTrace();" + nl)
+                out.append(ind4 + ind4 + ind4 + "long threadId = getThreadId();" + nl)
+                // A custom logID is honored, at the cost of building the log of every call
+                val logged = if (this.logId.trim() == this.getDefaultLogId()) args else this.logId.trim()
+                out.append(ind4 + ind4 + ind4 + "String logSignature = addCurrentLogs($apiId, threadId, stackTrace, $logged);" + nl)
+                out.append(ind4 + ind4 + ind4 + "if (logSignature != null)" + nl)
+                out.append(
+                    ind4 + ind4 + ind4 + ind4 + String.format(
+                        "Log.%s(\"%s\", logSignature);",
+                        MonitorConstants.loglevel,
+                        MonitorConstants.tag_api
+                    ) + nl
+                )
+                out.append("$ind4$ind4}$nl")
+            }
+            MonitorMode.Structured -> {
+                out.append(ind4 + ind4 + "if (shouldLog($apiId)) {" + nl)
+                out.append(ind4 + ind4 + ind4 + "long threadId = getThreadId();" + nl)
+                out.append(ind4 + ind4 + ind4 + "int stackId = getStackId();" + nl)
+                out.append(ind4 + ind4 + ind4 + "addCurrentRecord($apiId, threadId, stackId, $args);" + nl)
+                out.append("$ind4$ind4}$nl")
             }
+            // Neither the stack trace nor the parameters are needed, every call is counted
+            MonitorMode.CountersOnly -> out.append(ind4 + ind4 + "countCall($apiId);" + nl)
         }
 
-        out.append(ind4 + "String stackTrace = getStackTrace();" + nl)
-        out.append(ind4 + "long threadId = getThreadId();" + nl)
-        out.append(ind4 + String.format("String logSignature = %s;", this.logId) + nl)
-        out.append(
-            ind4 + String.format(
-                "Log.%s(\"%s\", logSignature);",
-                MonitorConstants.loglevel,
-                MonitorConstants.tag_api
-            ) + nl
-        )
-        out.append(ind4 + "addCurrentLogs(logSignature);" + nl)
-
-        out.append(ind4 + "List<Uri> uriList = new ArrayList<>();" + nl)
-
-        (0 until this.paramClasses.size).forEach { x ->
-            if (this.paramClasses[x] == "android.net.Uri")
-                out.append(ind4 + "uriList.add(p$x);" + nl)
+        val uriParams = (0 until this.paramClasses.size).filter { x -> this.paramClasses[x] == "android.net.Uri" }
+        if (uriParams.isEmpty()) {
+            out.append(ind4 + ind4 + "List<Uri> uriList = Collections.emptyList();" + nl)
+        } else {
+            out.append(ind4 + ind4 + "List<Uri> uriList = new ArrayList<>();" + nl)
+            uriParams.forEach { x -> out.append(ind4 + ind4 + "uriList.add(p$x);" + nl) }
         }
-        out.append(ind4 + "ApiPolicy policy = getPolicy(\"${this.getShortSignature()}\", uriList);" + nl)
+        out.append(ind4 + ind4 + "policy = getPolicy($apiId, uriList);" + nl)
+
+        val blockedMessage = "API ${this.objectClass}->${this.methodName} was blocked by DroidMate"
+        out.append(ind4 + ind4 + "if (policy == ApiPolicy.Deny)" + nl)
+        out.append(ind4 + ind4 + ind4 + String.format("Log.e(\"%s\", \"%s\");", MonitorConstants.tag_api, blockedMessage) + nl)
+        out.append(ind4 + "} finally {" + nl)
+        out.append(ind4 + ind4 + "guard.exit();" + nl)
+        out.append("$ind4}$nl")
+
         // Currently, when denying, the method is not being called
         out.append(ind4 + "switch (policy){ " + nl)
         out.append(ind4 + ind4 + "case Allow: " + nl)
@@ -120,14 +176,7 @@ internal fun ApiMethodSignature.toRedirectCode(): String {
         out.append(ind4 + ind4 + "case Mock: " + nl)
         out.append(ind4 + ind4 + ind4 + String.format("return %s;", this.defaultValue) + nl)
         out.append(ind4 + ind4 + "case Deny: " + nl)
-        out.append(ind4 + ind4 + ind4 + "${this.exceptionType} e = new ${this.exceptionType}(\"API ${this.objectClass}->${this.methodName} was blocked by DroidMate\");" + nl)
-        out.append(
-            ind4 + ind4 + ind4 + String.format(
-                "Log.e(\"%s\", e.getMessage());",
-                MonitorConstants.tag_api
-            ) + nl
-        )
-        out.append(ind4 + ind4 + ind4 + "throw e;" + nl)
+        out.append(ind4 + ind4 + ind4 + "throw new ${this.exceptionType}(\"$blockedMessage\");" + nl)
         out.append(ind4 + ind4 + "default:" + nl)
         out.append(ind4 + ind4 + ind4 + "throw new RuntimeException(\"Policy for api ${this.objectClass}->${this.methodName} cannot be determined.\");" + nl)
         out.append("$ind4}$nl")
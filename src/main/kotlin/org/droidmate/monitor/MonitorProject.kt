@@ -39,10 +39,16 @@ import java.io.Closeable
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption
+import kotlin.streams.toList
 
+/**
+ * @param cache Monitor apks built previously, null to always build the apk. See [cacheKey].
+ */
 internal class MonitorProject constructor(
     private val methods: List<ApiMethodSignature>,
-    private val executor: ISysCmdExecutor = SysCmdExecutor()
+    private val mode: MonitorMode = MonitorMode.Text,
+    private val executor: ISysCmdExecutor = SysCmdExecutor(),
+    private val cache: ContentAddressedCache? = null
 ) : Closeable {
     companion object {
         private val log by lazy { LoggerFactory.getLogger(SysCmdExecutor::class.java) }
@@ -86,18 +92,25 @@ internal class MonitorProject constructor(
     }
 
     /**
-     * Generate code for API redirection
+     * Generate code for API redirection and the table of the monitored APIs
      */
     private fun injectRedirectionCode() {
-        log.debug("Injecting API redirection code into monitor class")
-        val methodCode = methods.joinToString(System.lineSeparator()) { it.toRedirectCode() }
+        log.debug("Injecting API redirection code into monitor class ($mode mode)")
+        val methodCode = methods
+            .mapIndexed { apiId, method -> method.toRedirectCode(apiId, mode) }
+            .joinToString(System.lineSeparator())
 
         monitorFile.replaceText("GENERATED_CODE_INJECTION_POINT:METHOD_REDIR_TARGETS",
             "${System.lineSeparator()}$methodCode")
+
+        // The position of each method in the table is its id, as used by the redirection code above
+        val apiTable = methods.joinToString(System.lineSeparator()) { it.toApiTableEntry() }
+        monitorFile.replaceText("GENERATED_CODE_INJECTION_POINT:API_TABLE",
+            "${System.lineSeparator()}$apiTable")
     }
 
     /**
-     * Generate code for Port and policies file path
+     * Generate code for Port, policies and configuration file paths
      */
     private fun injectFilePaths() {
         monitorFile.replaceText(
@@ -108,6 +121,21 @@ internal class MonitorProject constructor(
             "#PORT_FILE_PATH",
             EnvironmentConstants.AVD_dir_for_temp_files + EnvironmentConstants.monitor_port_file_name
         )
+        monitorFile.replaceText(
+            "#CONFIG_FILE_PATH",
+            EnvironmentConstants.AVD_dir_for_temp_files + Compiler.monitor_config_file_name
+        )
+    }
+
+    /**
+     * Generate the preset dictionary used to compress the responses of the monitor
+     */
+    private fun injectCompressionDictionary() {
+        val dictionary = CompressionDictionary.buildString(methods)
+            .replace("\\", "\\\\")
+            .replace("\"", "\\\"")
+
+        monitorFile.replaceText("#DEFLATE_DICTIONARY", dictionary)
     }
 
     /**
@@ -133,15 +161,39 @@ internal class MonitorProject constructor(
      * Execute gradle build task on the temporary project to build the monitor
      */
     private fun buildApk() {
+        // Only the apk, the unit tests of the monitor are run when developing it, not for each build
         executor.executeWithoutTimeout(
             "Building monitor apk",
             "$unpackedMonitorRepository/gradlew${if (OS.isWindows) ".bat" else "" }",
             "clean",
-            "build",
+            "assembleRelease",
             "-p", "$unpackedMonitorRepository"
         )
     }
 
+    /**
+     * Key of the monitor apk in the [cache]: hash of every file of the project, once the generated code was injected.
+     * It thus covers the monitored APIs (in their order, which defines their ids), the mode, the injected file paths
+     * and the contents of the monitor project template.
+     */
+    private fun cacheKey(): String {
+        val key = ContentAddressedCache.Key()
+        val files = Files.walk(unpackedMonitorRepository).use { paths ->
+            paths.toList()
+                .filter { Files.isRegularFile(it) }
+                .map { unpackedMonitorRepository.relativize(it) }
+                // Outputs of previous builds, if any, and the unit tests, which are not part of the apk
+                .filterNot { it.startsWith("build") || it.startsWith(".gradle") || it.startsWith("src/test") }
+                .sortedBy { it.joinToString("/") }
+        }
+
+        files.forEach { file ->
+            key.add(file.joinToString("/"))
+            key.add(unpackedMonitorRepository.resolve(file))
+        }
+        return key.build()
+    }
+
     /**
      * Build the redirection APK and copy it to the (destination directory)[dstDir]
      *
@@ -151,9 +203,24 @@ internal class MonitorProject constructor(
     fun instrument(dstDir: Path): Path {
         injectRedirectionCode()
         injectFilePaths()
+        injectCompressionDictionary()
+
+        val key = cache?.let { cacheKey() }
+        if (cache != null && key != null) {
+            Files.createDirectories(dstDir)
+            val dstFile = dstDir.resolve(monitor_apk_name)
+            // Copied, as the unsigned apk may be signed in place afterwards
+            if (cache.get(key, dstFile)) {
+                log.info("Monitor apk found in the cache, not building it")
+                return dstFile
+            }
+        }
 
         buildApk()
 
+        if (cache != null && key != null && Files.exists(compiledApk))
+            cache.put(key, compiledApk)
+
         return copyApkTo(dstDir)
     }
 }
\ No newline at end of file
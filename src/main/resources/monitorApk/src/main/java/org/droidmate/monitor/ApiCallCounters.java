@@ -0,0 +1,65 @@
+package org.droidmate.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Number of calls of each API, with the times of the first and the last call, for monitors compiled with
+ * {@code MonitorMode.CountersOnly}.
+ *
+ * </p><p>
+ * Counting a call costs a clock read and a few atomic operations on slots of its API. The slots of each API are
+ * {@link #STRIDE} longs apart, so that APIs called from different threads do not share cache lines.
+ * </p>
+ */
+class ApiCallCounters {
+	/**
+	 * 64 bytes, the usual cache line size
+	 */
+	private static final int STRIDE = 8;
+
+	private final int size;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray firstEpochNanos;
+	private final AtomicLongArray lastEpochNanos;
+
+	ApiCallCounters(int size) {
+		this.size = size;
+		this.counts = new AtomicLongArray(size * STRIDE);
+		this.firstEpochNanos = new AtomicLongArray(size * STRIDE);
+		this.lastEpochNanos = new AtomicLongArray(size * STRIDE);
+	}
+
+	void count(int apiId, long epochNanos) {
+		if (apiId < 0 || apiId >= size)
+			return;
+
+		int slot = apiId * STRIDE;
+		if (counts.getAndIncrement(slot) == 0)
+			firstEpochNanos.compareAndSet(slot, 0, epochNanos);
+
+		long last;
+		do {
+			last = lastEpochNanos.get(slot);
+		} while (epochNanos > last && !lastEpochNanos.compareAndSet(slot, last, epochNanos));
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getCount(int apiId) {
+		return counts.get(apiId * STRIDE);
+	}
+
+	/**
+	 * @return Time of the first call, see {@link Monitor#getNowEpochNanos()}, or 0 if it is being counted right now
+	 */
+	long getFirstEpochNanos(int apiId) {
+		return firstEpochNanos.get(apiId * STRIDE);
+	}
+
+	long getLastEpochNanos(int apiId) {
+		return lastEpochNanos.get(apiId * STRIDE);
+	}
+}
@@ -0,0 +1,342 @@
+package org.droidmate.monitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Buffer of API logs in which every app thread appends to its own queue, so that threads calling monitored APIs
+ * do not contend on a shared lock.
+ *
+ * </p><p>
+ * Each queue is ordered by capture time, as it is only written by its own thread. {@link #drain()} takes the events
+ * from all queues and merges them by timestamp. Queues of threads which died are discarded once they are empty.
+ *
+ * </p><p>
+ * The order is only guaranteed within one drain: the capture time is taken before the event is built and appended, so
+ * an event may only be appended after a drain took later events, and then be returned by the next drain with an earlier
+ * timestamp than events already returned.
+ *
+ * </p><p>
+ * The buffer holds at most {@code capacity} events, so that the app under test does not run out of memory when
+ * the host machine stops requesting logs. What happens with further events is defined by a {@link LogOverflowPolicy}.
+ * Discarded events are counted per API, see {@link #getDropCounters()}.
+ *
+ * </p><p>
+ * With {@link LogStoreMode#MappedFile} or {@link LogStoreMode#Journal}, events are written to a {@link MappedLogStore}
+ * instead, once its directory is known. Events captured before stay in memory.
+ * </p>
+ */
+class ApiLogBuffer {
+	private static final String SPILL_FILE_NAME = "droidmate_monitor_spill.bin";
+	private static final String STORE_DIRECTORY_NAME = "droidmate_monitor_logs";
+
+	private static final Comparator<ApiLogEvent> BY_TIME = new Comparator<ApiLogEvent>() {
+		@Override
+		public int compare(ApiLogEvent a, ApiLogEvent b) {
+			return Long.compare(a.epochNanos, b.epochNanos);
+		}
+	};
+
+	private static final class ThreadBuffer {
+		private final WeakReference<Thread> owner;
+		private final ConcurrentLinkedQueue<ApiLogEvent> events = new ConcurrentLinkedQueue<>();
+
+		private ThreadBuffer(Thread owner) {
+			this.owner = new WeakReference<>(owner);
+		}
+
+		private boolean isOwnerAlive() {
+			Thread thread = owner.get();
+			return (thread != null) && thread.isAlive();
+		}
+	}
+
+	private final int capacity;
+	private final LogOverflowPolicy overflowPolicy;
+	private final long spillMaxBytes;
+	private final LogStoreMode storeMode;
+	private final int storeSegmentBytes;
+	private final long storeMaxBytes;
+	private final int journalFlushBatch;
+	private final long journalFlushIntervalMs;
+
+	private final AtomicInteger size = new AtomicInteger(0);
+	private final ApiTable apis;
+	/**
+	 * Indexed by API id
+	 */
+	private final AtomicLongArray dropCounters;
+	/**
+	 * For events of APIs without id
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> otherDropCounters = new ConcurrentHashMap<>();
+	private volatile ApiLogSpillFile spillFile = null;
+	private volatile MappedLogStore store = null;
+
+	// Only modified when a thread logs for the first time or when a dead thread's buffer is discarded
+	private final CopyOnWriteArrayList<ThreadBuffer> buffers = new CopyOnWriteArrayList<>();
+
+	private final ThreadLocal<ThreadBuffer> localBuffer = new ThreadLocal<ThreadBuffer>() {
+		@Override
+		protected ThreadBuffer initialValue() {
+			ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	ApiLogBuffer(MonitorConfig config, ApiTable apis) {
+		this.apis = apis;
+		this.dropCounters = new AtomicLongArray(apis.size());
+		this.capacity = Math.max(1, config.getInt(MonitorConfig.LOGS_CAPACITY, 50000));
+		this.overflowPolicy = config.getEnum(MonitorConfig.LOGS_OVERFLOW, LogOverflowPolicy.class, LogOverflowPolicy.DropOldest);
+		this.spillMaxBytes = config.getLong(MonitorConfig.LOGS_SPILL_MAX_BYTES, 64L * 1024 * 1024);
+		this.storeMode = config.getEnum(MonitorConfig.LOGS_STORE, LogStoreMode.class, LogStoreMode.Memory);
+		this.storeSegmentBytes = config.getInt(MonitorConfig.LOGS_STORE_SEGMENT_BYTES, 4 * 1024 * 1024);
+		this.storeMaxBytes = config.getLong(MonitorConfig.LOGS_STORE_MAX_BYTES, 64L * 1024 * 1024);
+		this.journalFlushBatch = Math.max(0, config.getInt(MonitorConfig.JOURNAL_FLUSH_BATCH, 1000));
+		this.journalFlushIntervalMs = Math.max(1, config.getLong(MonitorConfig.JOURNAL_FLUSH_INTERVAL_MS, 200));
+	}
+
+	/**
+	 * Sets the directory of the {@link MappedLogStore}, if the configuration uses one, and opens it with the logs left by
+	 * a previous process. Until then, events are kept in memory.
+	 *
+	 * @throws IOException if the store cannot be opened, events are then kept in memory
+	 */
+	void setStoreDirectory(File directory) throws IOException {
+		if (storeMode == LogStoreMode.Memory || store != null)
+			return;
+
+		File storeDirectory = new File(directory, STORE_DIRECTORY_NAME);
+		if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs())
+			throw new IOException("Cannot create " + storeDirectory);
+
+		if (storeMode == LogStoreMode.Journal) {
+			MappedLogStore journal = new MappedLogStore(storeDirectory, storeSegmentBytes, storeMaxBytes, journalFlushBatch);
+			journal.startFlushing(journalFlushIntervalMs);
+			store = journal;
+		} else
+			store = new MappedLogStore(storeDirectory, storeSegmentBytes, storeMaxBytes);
+	}
+
+	/**
+	 * @param ack End offset of the previous region, to acknowledge it, or -1
+	 * @return Next region of the {@link MappedLogStore}, see {@link MappedLogStore#nextRegion(long)}, or null if there
+	 * is no store
+	 */
+	FileRegion nextStoreRegion(long ack) {
+		MappedLogStore currentStore = store;
+		return (currentStore != null) ? currentStore.nextRegion(ack) : null;
+	}
+
+	/**
+	 * Sets the directory used by {@link LogOverflowPolicy#Spill}. Until then, overflowing events are dropped.
+	 */
+	void setSpillDirectory(File directory) {
+		if (overflowPolicy == LogOverflowPolicy.Spill && spillFile == null)
+			spillFile = new ApiLogSpillFile(new File(directory, SPILL_FILE_NAME), spillMaxBytes);
+	}
+
+	/**
+	 * Appends an event to the queue of the calling thread. Lock free, unless the buffer is full and the overflow policy
+	 * is {@link LogOverflowPolicy#Spill}, or events are written to the {@link MappedLogStore}.
+	 */
+	void add(ApiLogEvent event) {
+		MappedLogStore currentStore = store;
+		if (currentStore != null) {
+			if (!currentStore.append(event))
+				countDrop(event);
+			return;
+		}
+
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+
+			switch (overflowPolicy) {
+				case DropOldest:
+					// The oldest event of the calling thread, without looking at the queues of the other threads. Only a
+					// thread which has no event buffered searches the oldest one among all queues.
+					ApiLogEvent dropped = localBuffer.get().events.poll();
+					if (dropped == null)
+						dropped = pollOldest(Long.MAX_VALUE);
+					countDrop((dropped != null) ? dropped : event);
+					if (dropped == null)
+						return;
+					// The new event takes the place of the dropped one, the size does not change
+					break;
+
+				case Spill:
+					ApiLogSpillFile file = spillFile;
+					if (file == null || !file.write(event))
+						countDrop(event);
+					return;
+
+				default:
+					countDrop(event);
+					return;
+			}
+		}
+
+		localBuffer.get().events.offer(event);
+	}
+
+	/**
+	 * Removes all events captured until now from the buffer (and the spill file or the store, if any).
+	 *
+	 * @return Events ordered by capture time
+	 */
+	List<ApiLogEvent> drain() {
+		return drain(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes the oldest events captured until now from the buffer (and the spill file or the store, if any).
+	 *
+	 * @param maxEvents Maximum number of events to remove
+	 * @return Events ordered by capture time
+	 */
+	List<ApiLogEvent> drain(int maxEvents) {
+		// Events captured while draining are left for the next drain, otherwise a busy thread could keep us here
+		long cutoff = Monitor.getNowEpochNanos();
+		List<ApiLogEvent> result = new ArrayList<>();
+
+		if (maxEvents == Integer.MAX_VALUE) {
+			for (ThreadBuffer buffer : buffers) {
+				ApiLogEvent event;
+				while (((event = buffer.events.peek()) != null) && (event.epochNanos <= cutoff)) {
+					if (buffer.events.remove(event)) {
+						size.decrementAndGet();
+						result.add(event);
+					}
+				}
+			}
+		} else {
+			// Merge the queues, taking always the oldest head, until enough events were taken
+			ApiLogEvent event;
+			while (result.size() < maxEvents && (event = pollOldest(cutoff)) != null) {
+				size.decrementAndGet();
+				result.add(event);
+			}
+		}
+
+		discardFinishedBuffers();
+
+		ApiLogSpillFile file = spillFile;
+		if (file != null && result.size() < maxEvents)
+			result.addAll(file.drain(maxEvents - result.size()));
+
+		MappedLogStore currentStore = store;
+		if (currentStore != null && result.size() < maxEvents)
+			result.addAll(currentStore.drain(maxEvents - result.size()));
+
+		// The result is a concatenation of sorted runs, which the sort merges in linear time
+		Collections.sort(result, BY_TIME);
+		return result;
+	}
+
+	private void discardFinishedBuffers() {
+		List<ThreadBuffer> finished = new ArrayList<>();
+		for (ThreadBuffer buffer : buffers) {
+			if (!buffer.isOwnerAlive() && buffer.events.isEmpty())
+				finished.add(buffer);
+		}
+		buffers.removeAll(finished);
+	}
+
+	/**
+	 * @return Number of events in memory, approximate while other threads log
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return Number of events discarded so far, per API policy key. Counters are never reset.
+	 */
+	Map<String, Long> getDropCounters() {
+		Map<String, Long> snapshot = new HashMap<>();
+		for (int apiId = 0; apiId < dropCounters.length(); apiId++) {
+			long count = dropCounters.get(apiId);
+			if (count > 0)
+				snapshot.put(apis.getKey(apiId), count);
+		}
+		for (Map.Entry<String, AtomicLong> entry : otherDropCounters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Removes the oldest event among the heads of all queues, if it was captured until {@code cutoff}.
+	 */
+	private ApiLogEvent pollOldest(long cutoff) {
+		while (true) {
+			ThreadBuffer oldest = null;
+			ApiLogEvent oldestEvent = null;
+
+			for (ThreadBuffer buffer : buffers) {
+				ApiLogEvent head = buffer.events.peek();
+				if (head != null && (oldestEvent == null || head.epochNanos < oldestEvent.epochNanos)) {
+					oldest = buffer;
+					oldestEvent = head;
+				}
+			}
+
+			if (oldest == null || oldestEvent.epochNanos > cutoff)
+				return null;
+
+			// Another thread (or the TCP server) may have taken it meanwhile, in this case search again
+			if (oldest.events.remove(oldestEvent))
+				return oldestEvent;
+		}
+	}
+
+	/**
+	 * @return If a new event would be discarded by {@link #add(ApiLogEvent)}, because the buffer is full and the overflow
+	 * policy is {@link LogOverflowPolicy#DropNewest}. Lets callers skip building events which would be dropped.
+	 */
+	boolean dropsNewEvents() {
+		return store == null && overflowPolicy == LogOverflowPolicy.DropNewest && size.get() >= capacity;
+	}
+
+	/**
+	 * Counts an event which was discarded, here or elsewhere.
+	 */
+	void countDrop(ApiLogEvent event) {
+		countDrop(event.apiId, event.api);
+	}
+
+	/**
+	 * Counts an event of the API which was discarded before being built.
+	 */
+	void countDrop(int apiId, String api) {
+		if (apis.contains(apiId)) {
+			dropCounters.incrementAndGet(apiId);
+			return;
+		}
+
+		AtomicLong counter = otherDropCounters.get(api);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong(0);
+			counter = otherDropCounters.putIfAbsent(api, newCounter);
+			if (counter == null)
+				counter = newCounter;
+		}
+		counter.incrementAndGet();
+	}
+}
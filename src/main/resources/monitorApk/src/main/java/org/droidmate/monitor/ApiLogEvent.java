@@ -0,0 +1,79 @@
+package org.droidmate.monitor;
+
+/**
+ * <p>
+ * A single monitored API call, as captured by the generated redirection code.
+ *
+ * </p><p>
+ * Only raw values are recorded when the call happens, they are converted into the format expected by the
+ * host machine when the logs are sent by the TCP server. Depending on the monitor mode the call is described either
+ * by a text payload or, for structured records, by its API id, stack trace id and parameter values.
+ * </p>
+ */
+final class ApiLogEvent {
+	/**
+	 * Policy key of the monitored method, see {@code MethodGenerator#getPolicyKey}
+	 */
+	final String api;
+	/**
+	 * Id of the monitored method in the {@link ApiTable}, -1 if unknown
+	 */
+	final int apiId;
+	final long threadId;
+	/**
+	 * Capture time, see {@link Monitor#getNowEpochNanos()}
+	 */
+	final long epochNanos;
+	/**
+	 * Text describing the call, null for structured records
+	 */
+	final String payload;
+	/**
+	 * Id of the stack trace in {@link StackFrameTable}, -1 for text logs
+	 */
+	final int stackId;
+	/**
+	 * Rendered parameter values, null for text logs
+	 */
+	final String[] params;
+
+	ApiLogEvent(String api, int apiId, long threadId, long epochNanos, String payload) {
+		this(api, apiId, threadId, epochNanos, payload, -1, null);
+	}
+
+	ApiLogEvent(String api, int apiId, long threadId, long epochNanos, int stackId, String[] params) {
+		this(api, apiId, threadId, epochNanos, null, stackId, params);
+	}
+
+	ApiLogEvent(String api, int apiId, long threadId, long epochNanos, String payload, int stackId, String[] params) {
+		this.api = api;
+		this.apiId = apiId;
+		this.threadId = threadId;
+		this.epochNanos = epochNanos;
+		this.payload = payload;
+		this.stackId = stackId;
+		this.params = params;
+	}
+
+	boolean isRecord() {
+		return payload == null;
+	}
+
+	/**
+	 * @return Payload of text logs. Structured records are described in a simple "key: value" form, for debugging
+	 */
+	String getPayload() {
+		if (!isRecord())
+			return payload;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("TId: ").append(threadId)
+				.append(";apiId: ").append(apiId)
+				.append(";api: '").append(api)
+				.append("';params:");
+		for (String param : params)
+			sb.append(" '").append(param).append("'");
+		sb.append(";stackId: ").append(stackId);
+		return sb.toString();
+	}
+}
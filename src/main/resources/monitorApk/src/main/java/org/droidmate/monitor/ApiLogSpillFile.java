@@ -0,0 +1,157 @@
+package org.droidmate.monitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * File to which {@link ApiLogBuffer} writes API logs which do not fit in memory, see {@link LogOverflowPolicy#Spill}.
+ *
+ * </p><p>
+ * Writes only happen while the buffer is full, so they are synchronized on this object.
+ * </p>
+ */
+class ApiLogSpillFile {
+	private final File file;
+	private final long maxBytes;
+
+	private DataOutputStream output = null;
+	private long size = 0;
+	private long readOffset = 0;
+
+	ApiLogSpillFile(File file, long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		// Logs from a previous process do not belong to this execution
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	/**
+	 * @return If the event was written, false if the file is full or cannot be written
+	 */
+	synchronized boolean write(ApiLogEvent event) {
+		BinaryWriter record = encodeEvent(event);
+
+		int recordSize = 4 + record.size();
+		if (size + recordSize > maxBytes)
+			return false;
+
+		try {
+			if (output == null)
+				output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+
+			output.writeInt(record.size());
+			output.write(record.toByteArray());
+			size += recordSize;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads and removes the oldest events from the file. The file is deleted once all its events were read.
+	 *
+	 * @param maxEvents Maximum number of events to read
+	 */
+	synchronized List<ApiLogEvent> drain(int maxEvents) {
+		List<ApiLogEvent> events = new ArrayList<>();
+		if (size == readOffset)
+			return events;
+
+		boolean failed = false;
+		try {
+			output.flush();
+
+			try (FileInputStream fileInput = new FileInputStream(file)) {
+				fileInput.getChannel().position(readOffset);
+				DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+
+				while (events.size() < maxEvents && readOffset < size) {
+					byte[] record = new byte[input.readInt()];
+					input.readFully(record);
+					readOffset += 4 + record.length;
+
+					events.add(readEvent(new BinaryReader(record)));
+				}
+			}
+		} catch (IOException e) {
+			// Events which could not be read are lost, nothing else to do
+			failed = true;
+		}
+
+		if (failed || readOffset >= size)
+			reset();
+
+		return events;
+	}
+
+	private void reset() {
+		try {
+			if (output != null)
+				output.close();
+		} catch (IOException e) {
+			// Nothing to do, the file is deleted anyway
+		}
+
+		output = null;
+		size = 0;
+		readOffset = 0;
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	/**
+	 * Encoding of the events in the spill file, also used by {@link MappedLogStore}:
+	 * <pre>
+	 * string api, varint (apiId + 1), varint threadId, varint epochNanos, string payload, varint (stackId + 1),
+	 * varint (param count + 1, 0 for null), string param x count</pre>
+	 * Integers and strings are encoded as in {@link BinaryWriter}.
+	 */
+	static BinaryWriter encodeEvent(ApiLogEvent event) {
+		BinaryWriter record = new BinaryWriter();
+		record.writeString(event.api);
+		record.writeVarInt(event.apiId + 1);
+		record.writeVarLong(event.threadId);
+		record.writeVarLong(event.epochNanos);
+		record.writeString(event.payload);
+		record.writeVarInt(event.stackId + 1);
+		record.writeVarInt((event.params != null) ? event.params.length + 1 : 0);
+		if (event.params != null) {
+			for (String param : event.params)
+				record.writeString(param);
+		}
+		return record;
+	}
+
+	/**
+	 * @see #encodeEvent(ApiLogEvent)
+	 */
+	static ApiLogEvent readEvent(BinaryReader record) throws IOException {
+		String api = record.readString();
+		int apiId = record.readVarInt() - 1;
+		long threadId = record.readVarLong();
+		long epochNanos = record.readVarLong();
+		String payload = record.readString();
+		int stackId = record.readVarInt() - 1;
+
+		int paramCount = record.readVarInt() - 1;
+		String[] params = null;
+		if (paramCount >= 0) {
+			params = new String[paramCount];
+			for (int i = 0; i < paramCount; i++)
+				params[i] = record.readString();
+		}
+
+		return new ApiLogEvent(api, apiId, threadId, epochNanos, payload, stackId, params);
+	}
+}
@@ -0,0 +1,222 @@
+package org.droidmate.monitor;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.lang.reflect.Array;
+import java.util.IdentityHashMap;
+
+/**
+ * <p>
+ * Renders the parameter values of API calls as text, with a size budget per parameter.
+ *
+ * </p><p>
+ * Values are rendered as {@code Object.toString}, {@code Arrays.deepToString} and {@code Intent.toUri} would do, but the
+ * rendering stops as soon as the budget is spent: large arrays are not walked to the end, long strings are not copied and
+ * intent extras are only encoded up to the budget. Truncated values end with {@code _TRUNCATED_TO_<budget>_CHARS}, except
+ * intents, which keep their closing {@code end} so that they can still be parsed.
+ *
+ * </p><p>
+ * Logcat lines are limited to 4096 characters [1]. Intents with a large string extra used to take up the entire line,
+ * so that the remaining parts of the log (in particular, the stack trace) were lost. For example:
+ * <pre>
+ *   intent:#Intent;action=com.picsart.studio.notification.action;S.extra.result.string=%7B%22response%22%3A%5B%7B%...
+ *   ...&lt;and_so_on_until_entire_line_buffer_was_eaten&gt;</pre>
+ *
+ * [1] http://stackoverflow.com/questions/6321555/what-is-the-size-limit-for-logcat
+ * </p>
+ */
+class ApiParamRenderer {
+	private static final String ESCAPE_CHAR = "\\";
+	private static final String VALUE_STRING_ENCLOSING_CHAR = "'";
+	private static final String INTENT_END = "end";
+	/**
+	 * Starts the selector of an intent in {@code Intent.toUri}, after the extras of the intent itself
+	 */
+	private static final String INTENT_SELECTOR = ";SEL;";
+
+	private final int maxChars;
+	private final String truncatedSuffix;
+
+	/**
+	 * @param maxChars Maximum number of characters per parameter, 0 for no limit
+	 */
+	ApiParamRenderer(int maxChars) {
+		this.maxChars = (maxChars > 0) ? maxChars : Integer.MAX_VALUE - 1;
+		this.truncatedSuffix = "_TRUNCATED_TO_" + maxChars + "_CHARS";
+	}
+
+	/**
+	 * @return Value of the parameter as text, with the enclosing character ({@code '}) escaped
+	 */
+	String render(Object param) {
+		StringBuilder sb = new StringBuilder();
+		append(sb, param);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the value of the parameter to a log, see {@link #render(Object)}.
+	 */
+	void append(StringBuilder log, Object param) {
+		StringBuilder value = new StringBuilder();
+
+		if (param instanceof Intent)
+			appendIntent(value, (Intent) param);
+		else {
+			appendValue(value, param, null);
+			if (value.length() > maxChars) {
+				value.setLength(maxChars);
+				value.append(truncatedSuffix);
+			}
+		}
+
+		appendEscaped(log, value);
+	}
+
+	private boolean isFull(StringBuilder sb) {
+		return sb.length() > maxChars;
+	}
+
+	/**
+	 * Appends at most one character more than the budget, so that truncated values can be told apart.
+	 */
+	private void appendBounded(StringBuilder sb, CharSequence text) {
+		int room = maxChars + 1 - sb.length();
+		if (room <= 0)
+			return;
+
+		if (text.length() > room)
+			sb.append(text, 0, room);
+		else
+			sb.append(text);
+	}
+
+	private void appendValue(StringBuilder sb, Object value, IdentityHashMap<Object, Object> enclosingArrays) {
+		if (isFull(sb))
+			return;
+
+		if (value == null)
+			sb.append("null");
+		else if (value instanceof CharSequence)
+			appendBounded(sb, (CharSequence) value);
+		else if (value.getClass().isArray())
+			appendArray(sb, value, enclosingArrays);
+		else
+			appendBounded(sb, value.toString());
+	}
+
+	/**
+	 * Same format as {@code Arrays.deepToString}, including "[...]" for arrays which contain themselves.
+	 */
+	private void appendArray(StringBuilder sb, Object array, IdentityHashMap<Object, Object> enclosingArrays) {
+		if (enclosingArrays == null)
+			enclosingArrays = new IdentityHashMap<>();
+
+		if (enclosingArrays.containsKey(array)) {
+			sb.append("[...]");
+			return;
+		}
+		enclosingArrays.put(array, array);
+
+		sb.append('[');
+		int length = Array.getLength(array);
+		for (int i = 0; i < length && !isFull(sb); i++) {
+			if (i > 0)
+				sb.append(", ");
+			appendValue(sb, Array.get(array, i), enclosingArrays);
+		}
+		if (!isFull(sb))
+			sb.append(']');
+
+		enclosingArrays.remove(array);
+	}
+
+	/**
+	 * <p>
+	 * Same format as {@code Intent.toUri(Intent.URI_INTENT_SCHEME)}.
+	 *
+	 * </p><p>
+	 * The intent without its extras is rendered as is, it is small. The extras are then encoded one after the other,
+	 * until the budget is spent, where {@code Intent.toUri} puts them: before the selector, if any, else before the
+	 * closing {@code end}. An extra which does not fit anymore is truncated and the following ones are left out.
+	 * </p>
+	 */
+	private void appendIntent(StringBuilder sb, Intent intent) {
+		Bundle extras = intent.getExtras();
+		if (extras == null) {
+			String uri = intent.toUri(Intent.URI_INTENT_SCHEME);
+			if (!uri.endsWith(INTENT_END)) throw new AssertionError();
+			sb.append(uri);
+			return;
+		}
+
+		Intent withoutExtras = new Intent(intent);
+		withoutExtras.replaceExtras((Bundle) null);
+		String uri = withoutExtras.toUri(Intent.URI_INTENT_SCHEME);
+		if (!uri.endsWith(INTENT_END)) throw new AssertionError();
+		int selector = uri.indexOf(INTENT_SELECTOR);
+		int extrasPosition = (selector >= 0) ? selector + 1 : uri.length() - INTENT_END.length();
+		sb.append(uri, 0, extrasPosition);
+
+		for (String key : extras.keySet()) {
+			Object value = extras.get(key);
+			char type = getExtraType(value);
+			if (type == 0)
+				continue;
+
+			if (isFull(sb)) {
+				sb.append(truncatedSuffix).append(';');
+				break;
+			}
+
+			sb.append(type).append('.').append(Uri.encode(key)).append('=');
+
+			// Only the part of the value which can fit is encoded
+			String text = value.toString();
+			int room = Math.max(maxChars - sb.length(), 0);
+			String encoded = Uri.encode((text.length() > room) ? text.substring(0, room) : text);
+			if (text.length() <= room && encoded.length() <= room) {
+				sb.append(encoded).append(';');
+				continue;
+			}
+
+			// Do not cut an escaped character in the middle
+			int end = Math.min(encoded.length(), room);
+			if (end >= 1 && encoded.charAt(end - 1) == '%')
+				end -= 1;
+			else if (end >= 2 && encoded.charAt(end - 2) == '%')
+				end -= 2;
+			sb.append(encoded, 0, end).append(truncatedSuffix).append(';');
+			break;
+		}
+
+		sb.append(uri, extrasPosition, uri.length());
+	}
+
+	/**
+	 * @return Type prefix of the extra in {@code Intent.toUri}, 0 for extras which are not part of it
+	 */
+	private static char getExtraType(Object value) {
+		if (value instanceof String) return 'S';
+		if (value instanceof Boolean) return 'B';
+		if (value instanceof Byte) return 'b';
+		if (value instanceof Character) return 'c';
+		if (value instanceof Double) return 'd';
+		if (value instanceof Float) return 'f';
+		if (value instanceof Integer) return 'i';
+		if (value instanceof Long) return 'l';
+		if (value instanceof Short) return 's';
+		return 0;
+	}
+
+	private static void appendEscaped(StringBuilder log, CharSequence value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == VALUE_STRING_ENCLOSING_CHAR.charAt(0))
+				log.append(ESCAPE_CHAR);
+			log.append(c);
+		}
+	}
+}
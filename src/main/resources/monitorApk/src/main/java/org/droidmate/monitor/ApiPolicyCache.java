@@ -0,0 +1,141 @@
+package org.droidmate.monitor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Holds the API policies read from the policies file as an immutable, indexed snapshot ({@link ApiPolicyIndex}).
+ *
+ * </p><p>
+ * The file is only parsed again when its modification time or size changes (checked at most once every
+ * {@link #CHECK_INTERVAL_NS}) or when {@link #reload()} is explicitly requested, e.g. by the TCP server.
+ * Readers never block: they get the last published snapshot, even while another thread is reloading it.
+ * </p>
+ */
+class ApiPolicyCache {
+	private static final long CHECK_INTERVAL_NS = 20 * 1000 * 1000;
+
+	private final File policiesFile;
+	private final ApiTable apis;
+	private final ReentrantLock reloading = new ReentrantLock();
+
+	private volatile ApiPolicyIndex snapshot = ApiPolicyIndex.EMPTY;
+	private volatile long lastCheckNanoTime;
+	private volatile long lastModified = -1;
+	private volatile long lastLength = -1;
+
+	ApiPolicyCache(File policiesFile, ApiTable apis) {
+		this.policiesFile = policiesFile;
+		this.apis = apis;
+		this.lastCheckNanoTime = System.nanoTime() - CHECK_INTERVAL_NS;
+	}
+
+	/**
+	 * @return Current policies, reloaded beforehand if the policies file changed since the last check
+	 */
+	ApiPolicyIndex getSnapshot() {
+		long now = System.nanoTime();
+		if (now - lastCheckNanoTime >= CHECK_INTERVAL_NS) {
+			lastCheckNanoTime = now;
+
+			long modified = policiesFile.lastModified();
+			long length = policiesFile.length();
+			if (modified != lastModified || length != lastLength)
+				tryReload(modified, length);
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Forces the policies file to be read again, regardless of its modification time. If another thread is reloading
+	 * the policies, waits for it to finish and then reads the file again, as that thread may have read an older version.
+	 *
+	 * @return Number of policies loaded
+	 */
+	int reload() {
+		reloading.lock();
+		try {
+			readSnapshot(policiesFile.lastModified(), policiesFile.length());
+		} finally {
+			reloading.unlock();
+		}
+		return snapshot.size();
+	}
+
+	private void tryReload(long modified, long length) {
+		// Only one thread parses the file, the others continue with the previous snapshot
+		if (!reloading.tryLock())
+			return;
+
+		try {
+			readSnapshot(modified, length);
+		} finally {
+			reloading.unlock();
+		}
+	}
+
+	private void readSnapshot(long modified, long length) {
+		try {
+			snapshot = readPolicies();
+			lastModified = modified;
+			lastLength = length;
+		} catch (Exception e) {
+			// Keep the previous snapshot, the file is probably being written. It will be checked again later.
+			lastModified = -1;
+		}
+	}
+
+	private ApiPolicyIndex readPolicies() throws IOException {
+		Map<ApiPolicyId, ApiPolicy> policies = new LinkedHashMap<>();
+
+		if (policiesFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(policiesFile))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					processLine(line, policies);
+				}
+			}
+		}
+		//else
+		//  Log.w(MonitorConstants.Companion.getTag_srv(), "Api policies file not found. Continuing with default behavior (Allow)");
+
+		return new ApiPolicyIndex(policies, apis);
+	}
+
+	private static boolean skipLine(String line) {
+		return (line.trim().length() == 0) ||
+				!line.contains("\t") ||
+				line.startsWith("#");
+	}
+
+	private static void processLine(String line, Map<ApiPolicyId, ApiPolicy> policies) {
+		if (skipLine(line))
+			return;
+
+		// first field is method signature
+		// last field is policy
+		// anything in between are URIs
+		String[] lineData = line.split("\t");
+
+		String methodName = lineData[0].replaceAll("\\s+", "");
+		String policyStr = lineData[lineData.length - 1].trim();
+
+		ApiPolicy policy = ApiPolicy.valueOf(policyStr);
+		List<String> uriList = new ArrayList<>(Arrays.asList(lineData).subList(1, lineData.length - 1));
+
+		ApiPolicyId id = new ApiPolicyId(methodName, uriList.toArray(new String[0]));
+		// Keep the first definition, as it is the one a sequential evaluation of the file would use
+		if (!policies.containsKey(id))
+			policies.put(id, policy);
+	}
+}
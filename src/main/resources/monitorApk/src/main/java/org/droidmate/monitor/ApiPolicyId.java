@@ -14,19 +14,28 @@ class ApiPolicyId {
 		assert this.method != null;
 	}
 
-	boolean affects(String methodName, List<String> uriList) {
-		boolean equal = this.method.equals(methodName.replaceAll("\\s+", ""));
+	/**
+	 * @return Method signature affected by this policy, without whitespaces
+	 */
+	String getMethod() {
+		return method;
+	}
 
-		StringBuilder b = new StringBuilder();
-		for (String uri : uriList)
-			b.append(uri);
-		String apiList = b.toString();
+	boolean hasUris() {
+		return !uriList.isEmpty();
+	}
 
+	/**
+	 * @param uris Concatenation of all URIs accessed by the call, as produced by {@link ApiPolicyIndex#joinUris(List)}
+	 * @return If all restricted URIs of this policy are being accessed
+	 */
+	boolean affectsUris(String uris) {
 		for (String restrictedUri : this.uriList) {
-			equal &= apiList.contains(restrictedUri);
+			if (!uris.contains(restrictedUri))
+				return false;
 		}
 
-		return equal;
+		return true;
 	}
 
 	@Override
@@ -35,4 +44,9 @@ class ApiPolicyId {
 				((ApiPolicyId) other).method.equals(this.method) &&
 				((ApiPolicyId) other).uriList.equals(this.uriList);
 	}
-}
\ No newline at end of file
+
+	@Override
+	public int hashCode() {
+		return 31 * method.hashCode() + uriList.hashCode();
+	}
+}
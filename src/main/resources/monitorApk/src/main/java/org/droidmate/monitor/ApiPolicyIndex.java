@@ -0,0 +1,97 @@
+package org.droidmate.monitor;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Immutable view of the API policies, indexed by the id of the affected method in the {@link ApiTable}.
+ *
+ * </p><p>
+ * A call to an API without policy costs a single array access. URIs are only converted to strings when
+ * there is at least one candidate policy for the method which restricts URIs.
+ * </p>
+ */
+class ApiPolicyIndex {
+	static final ApiPolicyIndex EMPTY = new ApiPolicyIndex(Collections.<ApiPolicyId, ApiPolicy>emptyMap(), ApiTable.EMPTY);
+
+	/**
+	 * Candidate policies per API id, null if there are none
+	 */
+	private final ApiPolicyId[][] candidates;
+	/**
+	 * Policy of each candidate
+	 */
+	private final ApiPolicy[][] candidatePolicies;
+	private final int size;
+
+	/**
+	 * @param policies Policies in the order in which they should be evaluated
+	 * @param apis     Monitored APIs. Policies of other methods are ignored.
+	 */
+	ApiPolicyIndex(Map<ApiPolicyId, ApiPolicy> policies, ApiTable apis) {
+		this.size = policies.size();
+
+		Map<String, List<ApiPolicyId>> grouped = new HashMap<>();
+		for (ApiPolicyId id : policies.keySet()) {
+			List<ApiPolicyId> group = grouped.get(id.getMethod());
+			if (group == null) {
+				group = new ArrayList<>();
+				grouped.put(id.getMethod(), group);
+			}
+			group.add(id);
+		}
+
+		this.candidates = new ApiPolicyId[apis.size()][];
+		this.candidatePolicies = new ApiPolicy[apis.size()][];
+		for (int apiId = 0; apiId < apis.size(); apiId++) {
+			List<ApiPolicyId> group = grouped.get(apis.getKey(apiId));
+			if (group == null)
+				continue;
+
+			candidates[apiId] = group.toArray(new ApiPolicyId[0]);
+			candidatePolicies[apiId] = new ApiPolicy[group.size()];
+			for (int i = 0; i < group.size(); i++)
+				candidatePolicies[apiId][i] = policies.get(group.get(i));
+		}
+	}
+
+	/**
+	 * @param apiId   Id of the method in the {@link ApiTable}
+	 * @param uriList Resources being accessed by the method (if any)
+	 * @return Policy which applies to the call or null, if none does
+	 */
+	ApiPolicy find(int apiId, List<Uri> uriList) {
+		if (apiId < 0 || apiId >= candidates.length || candidates[apiId] == null)
+			return null;
+
+		ApiPolicyId[] methodPolicies = candidates[apiId];
+		String uris = null;
+		for (int i = 0; i < methodPolicies.length; i++) {
+			ApiPolicyId id = methodPolicies[i];
+			if (id.hasUris() && uris == null)
+				uris = joinUris(uriList);
+
+			if (!id.hasUris() || id.affectsUris(uris))
+				return candidatePolicies[apiId][i];
+		}
+
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	static String joinUris(List<Uri> uriList) {
+		StringBuilder b = new StringBuilder();
+		for (Uri uri : uriList)
+			b.append(uri.toString());
+		return b.toString();
+	}
+}
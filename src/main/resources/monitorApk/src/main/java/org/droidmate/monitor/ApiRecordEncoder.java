@@ -0,0 +1,61 @@
+package org.droidmate.monitor;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Encodes structured API records (see {@code MonitorMode.Structured}) into the binary layout sent to the host machine.
+ *
+ * </p><p>
+ * Layout, using the primitives of {@link BinaryWriter}:
+ * <pre>
+ * "DMR" (3 bytes), version (1 byte)
+ * varint frame count,  per frame:  varint frame id, string frame text
+ * varint stack count,  per stack:  varint stack id, varint length, varint frame id (top first) x length
+ * varint record count, per record: varint API id, varint thread id, signed varint time delta,
+ *                                  varint stack id, varint param count, string param x count
+ * </pre>
+ * Frames and stacks are only the ones not sent in previous batches. Record times are nanoseconds since the epoch, the
+ * first one relative to 0 and the following ones relative to the previous record. API ids are positions in the API list
+ * the monitor was compiled with.
+ * </p>
+ */
+class ApiRecordEncoder {
+	static final byte[] MAGIC = {'D', 'M', 'R'};
+	static final int VERSION = 1;
+
+	static byte[] encode(List<String[]> newFrames, List<StackFrameTable.FrameSequence> newStacks, List<ApiLogEvent> records) {
+		BinaryWriter writer = new BinaryWriter(64 + records.size() * 32);
+		writer.writeBytes(MAGIC).writeByte(VERSION);
+
+		writer.writeVarInt(newFrames.size());
+		for (String[] frame : newFrames) {
+			writer.writeVarInt(Integer.parseInt(frame[0]));
+			writer.writeString(frame[1]);
+		}
+
+		writer.writeVarInt(newStacks.size());
+		for (StackFrameTable.FrameSequence stack : newStacks) {
+			writer.writeVarInt(stack.getId());
+			writer.writeVarInt(stack.frameIds.length);
+			for (int frameId : stack.frameIds)
+				writer.writeVarInt(frameId);
+		}
+
+		writer.writeVarInt(records.size());
+		long previousTime = 0;
+		for (ApiLogEvent record : records) {
+			writer.writeVarInt(record.apiId);
+			writer.writeVarLong(record.threadId);
+			writer.writeSignedVarLong(record.epochNanos - previousTime);
+			writer.writeVarInt(record.stackId);
+			writer.writeVarInt(record.params.length);
+			for (String param : record.params)
+				writer.writeString(param);
+
+			previousTime = record.epochNanos;
+		}
+
+		return writer.toByteArray();
+	}
+}
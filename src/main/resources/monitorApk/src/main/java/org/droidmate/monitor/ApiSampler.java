@@ -0,0 +1,145 @@
+package org.droidmate.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Decides which calls of each API are logged, according to the sampling rates and rate limits of the configuration
+ * (see {@link MonitorConfig#SAMPLING_PREFIX} and {@link MonitorConfig#RATE_LIMIT_PREFIX}). The redirection code asks
+ * before building the stack trace and the log of a call, so skipped calls cost little. Skipped calls are counted per API.
+ *
+ * </p><p>
+ * In the configuration, an API is named either by its policy key, e.g.
+ * {@code android.util.Log.d(java.lang.String,java.lang.String)}, or by its class and method names, e.g.
+ * {@code android.util.Log.d}, for all its overloads. The policy key takes
+ * precedence, then the method name, then {@code default}.
+ *
+ * </p><p>
+ * Rate limits are token buckets, implemented as the equivalent "generic cell rate algorithm": instead of a number of
+ * tokens, each API keeps the time at which its bucket will be full again, updated with a compare-and-set. Calling
+ * threads never block.
+ * </p>
+ */
+class ApiSampler {
+	private static final String DEFAULT_NAME = "default";
+
+	/**
+	 * False if no API is sampled or rate limited, to skip all the checks
+	 */
+	private final boolean enabled;
+	/**
+	 * Per API id: 1 of how many calls is logged, 1 for all
+	 */
+	private final int[] sampleEvery;
+	/**
+	 * Per API id: nanoseconds between two calls at the limited rate, 0 for no limit
+	 */
+	private final long[] intervalNanos;
+	/**
+	 * Per API id: how much earlier than at the limited rate calls may come, to allow bursts
+	 */
+	private final long[] burstNanos;
+
+	private final AtomicLongArray calls;
+	/**
+	 * Per API id: time at which the bucket is full again, see the class documentation
+	 */
+	private final AtomicLongArray theoreticalArrival;
+	private final AtomicLongArray skipped;
+
+	ApiSampler(MonitorConfig config, ApiTable apis) {
+		int size = apis.size();
+		this.sampleEvery = new int[size];
+		this.intervalNanos = new long[size];
+		this.burstNanos = new long[size];
+		this.calls = new AtomicLongArray(size);
+		this.theoreticalArrival = new AtomicLongArray(size);
+		this.skipped = new AtomicLongArray(size);
+
+		this.enabled = config.hasKeysWithPrefix(MonitorConfig.SAMPLING_PREFIX) ||
+				config.hasKeysWithPrefix(MonitorConfig.RATE_LIMIT_PREFIX);
+
+		for (int apiId = 0; apiId < size; apiId++) {
+			ApiTable.Entry api = apis.get(apiId);
+
+			sampleEvery[apiId] = 1;
+			String sampling = getSetting(config, MonitorConfig.SAMPLING_PREFIX, api);
+			if (sampling != null) {
+				try {
+					sampleEvery[apiId] = Math.max(1, Integer.parseInt(sampling));
+				} catch (NumberFormatException e) {
+					// Not sampled
+				}
+			}
+
+			String rateLimit = getSetting(config, MonitorConfig.RATE_LIMIT_PREFIX, api);
+			if (rateLimit != null) {
+				try {
+					String[] values = rateLimit.split(",");
+					double rate = Double.parseDouble(values[0].trim());
+					double burst = (values.length > 1) ? Double.parseDouble(values[1].trim()) : rate;
+
+					if (rate > 0) {
+						intervalNanos[apiId] = Math.max(1, (long) (1e9 / rate));
+						burstNanos[apiId] = (long) (Math.max(0, Math.max(1, burst) - 1) * intervalNanos[apiId]);
+					}
+				} catch (NumberFormatException e) {
+					// Not limited
+				}
+			}
+		}
+	}
+
+	private static String getSetting(MonitorConfig config, String prefix, ApiTable.Entry api) {
+		String value = config.getString(prefix + api.key);
+		if (value == null)
+			value = config.getString(prefix + api.className + "." + api.methodName);
+		if (value == null)
+			value = config.getString(prefix + DEFAULT_NAME);
+		return value;
+	}
+
+	/**
+	 * @return If the current call of the API should be logged. Otherwise, it is counted as skipped.
+	 */
+	boolean shouldLog(int apiId) {
+		if (!enabled || apiId < 0 || apiId >= sampleEvery.length)
+			return true;
+
+		int every = sampleEvery[apiId];
+		if (every > 1 && (calls.getAndIncrement(apiId) % every) != 0) {
+			skipped.incrementAndGet(apiId);
+			return false;
+		}
+
+		long interval = intervalNanos[apiId];
+		if (interval > 0 && !acquire(apiId, interval)) {
+			skipped.incrementAndGet(apiId);
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean acquire(int apiId, long interval) {
+		long now = System.nanoTime();
+		while (true) {
+			long arrival = theoreticalArrival.get(apiId);
+			// The bucket was full at some point since the last call
+			long start = (arrival == 0 || arrival - now < 0) ? now : arrival;
+
+			if (start - now > burstNanos[apiId])
+				return false;
+
+			if (theoreticalArrival.compareAndSet(apiId, arrival, start + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * @return Number of calls of the API which were not logged because of sampling or rate limiting
+	 */
+	long getSkipped(int apiId) {
+		return skipped.get(apiId);
+	}
+}
@@ -0,0 +1,56 @@
+package org.droidmate.monitor;
+
+/**
+ * <p>
+ * Table of the monitored APIs, generated when the monitor is compiled (see {@code MethodGenerator#toApiTableEntry}).
+ *
+ * </p><p>
+ * Each API is identified by its position in the table, a dense id which the generated redirection code passes to the
+ * monitor instead of its signature. Per-API data, such as policies and counters, is kept in arrays indexed by this id.
+ * The id is also the position of the API in the list the monitor was compiled with.
+ * </p>
+ */
+final class ApiTable {
+	static final ApiTable EMPTY = new ApiTable();
+
+	static final class Entry {
+		/**
+		 * Policy key, see {@code MethodGenerator#getPolicyKey}
+		 */
+		final String key;
+		final String className;
+		final String methodName;
+		final String returnClass;
+		final String[] paramTypes;
+
+		Entry(String key, String className, String methodName, String returnClass, String[] paramTypes) {
+			this.key = key;
+			this.className = className;
+			this.methodName = methodName;
+			this.returnClass = returnClass;
+			this.paramTypes = paramTypes;
+		}
+	}
+
+	private final Entry[] entries;
+
+	ApiTable(Entry... entries) {
+		this.entries = entries;
+	}
+
+	int size() {
+		return entries.length;
+	}
+
+	boolean contains(int apiId) {
+		return apiId >= 0 && apiId < entries.length;
+	}
+
+	Entry get(int apiId) {
+		return entries[apiId];
+	}
+
+	String getKey(int apiId) {
+		return entries[apiId].key;
+	}
+}
@@ -0,0 +1,73 @@
+package org.droidmate.monitor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the primitives written by {@link BinaryWriter} from a byte array.
+ */
+class BinaryReader {
+	private final byte[] data;
+	private final int end;
+	private int position;
+
+	BinaryReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	BinaryReader(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	int readByte() throws IOException {
+		if (position >= end)
+			throw new EOFException();
+		return data[position++] & 0xFF;
+	}
+
+	byte[] readBytes(int length) throws IOException {
+		if (length < 0 || position + length > end)
+			throw new EOFException();
+		byte[] result = new byte[length];
+		System.arraycopy(data, position, result, 0, length);
+		position += length;
+		return result;
+	}
+
+	int readVarInt() throws IOException {
+		return (int) readVarLong();
+	}
+
+	long readVarLong() throws IOException {
+		long result = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift >= 64)
+				throw new IOException("Malformed varint");
+			b = readByte();
+			result |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return result;
+	}
+
+	long readSignedVarLong() throws IOException {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	String readString() throws IOException {
+		int length = readVarInt();
+		if (length == 0)
+			return null;
+		return new String(readBytes(length - 1), StandardCharsets.UTF_8);
+	}
+
+	boolean hasRemaining() {
+		return position < end;
+	}
+}
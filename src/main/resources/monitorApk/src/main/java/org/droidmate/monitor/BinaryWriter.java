@@ -0,0 +1,84 @@
+package org.droidmate.monitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Growable byte buffer with the primitives of the monitor's binary formats.
+ *
+ * </p><p>
+ * Integers are written as base 128 varints (7 bits per byte, least significant group first, high bit set on all bytes
+ * but the last). Signed values which may be negative are zigzag encoded first. Strings are written as the varint
+ * length of their UTF-8 bytes plus one, followed by the bytes. A length of 0 denotes null.
+ * </p>
+ */
+class BinaryWriter {
+	private byte[] data;
+	private int size = 0;
+
+	BinaryWriter() {
+		this(256);
+	}
+
+	BinaryWriter(int initialCapacity) {
+		data = new byte[Math.max(16, initialCapacity)];
+	}
+
+	BinaryWriter writeByte(int value) {
+		ensureCapacity(1);
+		data[size++] = (byte) value;
+		return this;
+	}
+
+	BinaryWriter writeBytes(byte[] bytes) {
+		return writeBytes(bytes, 0, bytes.length);
+	}
+
+	BinaryWriter writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, data, size, length);
+		size += length;
+		return this;
+	}
+
+	BinaryWriter writeVarInt(int value) {
+		return writeVarLong(value & 0xFFFFFFFFL);
+	}
+
+	BinaryWriter writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			data[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[size++] = (byte) value;
+		return this;
+	}
+
+	BinaryWriter writeSignedVarLong(long value) {
+		return writeVarLong((value << 1) ^ (value >> 63));
+	}
+
+	BinaryWriter writeString(String value) {
+		if (value == null)
+			return writeVarInt(0);
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1);
+		return writeBytes(bytes);
+	}
+
+	int size() {
+		return size;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > data.length)
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+	}
+}
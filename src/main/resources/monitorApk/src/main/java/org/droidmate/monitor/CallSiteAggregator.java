@@ -0,0 +1,161 @@
+package org.droidmate.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Aggregates API logs per call site, that is, per (API, stack trace) pair. Used instead of {@link ApiLogBuffer}
+ * when the monitor is configured with {@link MonitorConfig#LOGS_AGGREGATE}.
+ *
+ * </p><p>
+ * The first call from a site is kept in full, later calls only increment its counter and update the time of the last
+ * call. {@link #drainChanged()} returns the sites which were called since the previous drain, {@link #drainNew(int)}
+ * returns the first call of the sites which were not returned before. Both are independent from each other.
+ * </p>
+ */
+class CallSiteAggregator {
+	private static final class CallSite {
+		private final int apiId;
+		private final String stackTrace;
+
+		private CallSite(int apiId, String stackTrace) {
+			this.apiId = apiId;
+			this.stackTrace = stackTrace;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return (other instanceof CallSite) &&
+					((CallSite) other).apiId == this.apiId &&
+					((CallSite) other).stackTrace.equals(this.stackTrace);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * apiId + stackTrace.hashCode();
+		}
+	}
+
+	static final class Aggregate {
+		final ApiLogEvent first;
+		private final AtomicLong count = new AtomicLong(1);
+		private volatile long lastEpochNanos;
+		private final AtomicBoolean changed = new AtomicBoolean(true);
+
+		private Aggregate(ApiLogEvent first) {
+			this.first = first;
+			this.lastEpochNanos = first.epochNanos;
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		long getLastEpochNanos() {
+			return lastEpochNanos;
+		}
+	}
+
+	private final int capacity;
+	private final ConcurrentHashMap<CallSite, Aggregate> sites = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Aggregate> changedSites = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Aggregate> newSites = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * @param capacity Maximum number of distinct call sites, calls from further sites are not recorded
+	 */
+	CallSiteAggregator(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return If the call was recorded, false when the site is new and the maximum number of sites was reached
+	 */
+	boolean add(String stackTrace, ApiLogEvent event) {
+		CallSite site = new CallSite(event.apiId, stackTrace);
+		Aggregate aggregate = sites.get(site);
+
+		if (aggregate == null) {
+			if (size.incrementAndGet() > capacity) {
+				size.decrementAndGet();
+				return false;
+			}
+
+			Aggregate newAggregate = new Aggregate(event);
+			aggregate = sites.putIfAbsent(site, newAggregate);
+			if (aggregate == null) {
+				changedSites.offer(newAggregate);
+				newSites.offer(newAggregate);
+				return true;
+			}
+			size.decrementAndGet();
+		}
+
+		count(aggregate, event.epochNanos);
+		return true;
+	}
+
+	/**
+	 * Counts a call from a site which was already recorded, without an event being built for it.
+	 *
+	 * @return If the call was counted, false when the site is not known yet. It must then be added with
+	 * {@link #add(String, ApiLogEvent)}.
+	 */
+	boolean addRepeat(int apiId, String stackTrace, long epochNanos) {
+		Aggregate aggregate = sites.get(new CallSite(apiId, stackTrace));
+		if (aggregate == null)
+			return false;
+
+		count(aggregate, epochNanos);
+		return true;
+	}
+
+	private void count(Aggregate aggregate, long epochNanos) {
+		aggregate.count.incrementAndGet();
+		if (epochNanos > aggregate.lastEpochNanos)
+			aggregate.lastEpochNanos = epochNanos;
+		if (aggregate.changed.compareAndSet(false, true))
+			changedSites.offer(aggregate);
+	}
+
+	/**
+	 * @return Sites called since the last drain, with their total number of calls
+	 */
+	List<Aggregate> drainChanged() {
+		return drainChanged(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxSites Maximum number of sites to return, the remaining ones are returned by the next drain
+	 * @return Sites called since the last drain, with their total number of calls
+	 */
+	List<Aggregate> drainChanged(int maxSites) {
+		List<Aggregate> result = new ArrayList<>();
+		Aggregate aggregate;
+		while (result.size() < maxSites && (aggregate = changedSites.poll()) != null) {
+			aggregate.changed.set(false);
+			result.add(aggregate);
+		}
+		return result;
+	}
+
+	/**
+	 * @param maxSites Maximum number of sites to return, the remaining ones are returned by the next drain
+	 * @return Sites first called since the last drain, in the order of their first call
+	 */
+	List<Aggregate> drainNew(int maxSites) {
+		List<Aggregate> result = new ArrayList<>();
+		Aggregate aggregate;
+		while (result.size() < maxSites && (aggregate = newSites.poll()) != null) {
+			result.add(aggregate);
+		}
+		return result;
+	}
+}
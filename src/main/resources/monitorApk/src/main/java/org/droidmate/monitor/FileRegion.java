@@ -0,0 +1,93 @@
+package org.droidmate.monitor;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Response of the TCP server made of a few header bytes followed by a range of a file, sent to the host with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} instead of being copied into the heap of the app.
+ *
+ * </p><p>
+ * {@link WireProtocol} sends it as {@link WireProtocol#TYPE_BYTES}. Java serialization sends it as a byte array with
+ * the same content.
+ *
+ * </p><p>
+ * The file stays open as long as regions of it are not released: servers call {@link #release()} once the region is
+ * sent, or when its connection is lost.
+ * </p>
+ */
+final class FileRegion implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final byte[] header;
+	private final transient FileChannel channel;
+	private long position;
+	private long remaining;
+	private final transient Runnable onRelease;
+	private final transient AtomicBoolean released = new AtomicBoolean(false);
+
+	/**
+	 * @param onRelease Called once, by the first call to {@link #release()}
+	 */
+	FileRegion(byte[] header, FileChannel channel, long position, long count, Runnable onRelease) {
+		this.header = header;
+		this.channel = channel;
+		this.position = position;
+		this.remaining = count;
+		this.onRelease = onRelease;
+	}
+
+	/**
+	 * @return Size of the header and the range of the file
+	 */
+	long size() {
+		return header.length + remaining;
+	}
+
+	/**
+	 * @return If the range of the file was not completely transferred yet
+	 */
+	boolean hasRemaining() {
+		return remaining > 0;
+	}
+
+	/**
+	 * Transfers as much of the range of the file as {@code target} accepts, which may be nothing if it is non-blocking.
+	 * The header is not transferred.
+	 */
+	long transferTo(WritableByteChannel target) throws IOException {
+		long transferred = channel.transferTo(position, remaining, target);
+		position += transferred;
+		remaining -= transferred;
+		return transferred;
+	}
+
+	/**
+	 * Tells that the region is not used anymore, so that its file may be closed. Further calls do nothing.
+	 */
+	void release() {
+		if (released.compareAndSet(false, true))
+			onRelease.run();
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		try {
+			ByteBuffer content = ByteBuffer.allocate((int) size());
+			content.put(header);
+			while (content.hasRemaining()) {
+				if (channel.read(content, position + content.position() - header.length) < 0)
+					break;
+			}
+			return content.array();
+		} catch (IOException e) {
+			throw new InvalidObjectException("Cannot read the log store: " + e.getMessage());
+		}
+	}
+}
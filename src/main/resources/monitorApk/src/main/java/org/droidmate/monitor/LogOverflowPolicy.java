@@ -0,0 +1,21 @@
+package org.droidmate.monitor;
+
+/**
+ * Behavior of {@link ApiLogBuffer} when it is full.
+ */
+enum LogOverflowPolicy {
+	/**
+	 * Discard the oldest buffered API log of the calling thread to make room for the new one, or the oldest buffered API
+	 * log of all threads if the calling thread has none
+	 */
+	DropOldest,
+	/**
+	 * Discard the new API log
+	 */
+	DropNewest,
+	/**
+	 * Write the new API log to a file in the app's cache directory, it is sent with the next logs. When no file
+	 * is available (or it is full), behave as {@link #DropNewest}
+	 */
+	Spill
+}
@@ -0,0 +1,21 @@
+package org.droidmate.monitor;
+
+/**
+ * Where {@link ApiLogBuffer} keeps the API logs until the host machine requests them.
+ */
+enum LogStoreMode {
+	/**
+	 * On the heap of the app, as {@link ApiLogEvent} objects
+	 */
+	Memory,
+	/**
+	 * Encoded, in memory-mapped files in the data directory of the app, see {@link MappedLogStore}. They survive a crash
+	 * of the app.
+	 */
+	MappedFile,
+	/**
+	 * As {@link #MappedFile}, but the files are also flushed to storage in groups of logs, so that they survive a crash
+	 * of the device too. See {@link MonitorConfig#JOURNAL_FLUSH_INTERVAL_MS} and {@link MonitorConfig#JOURNAL_FLUSH_BATCH}.
+	 */
+	Journal
+}
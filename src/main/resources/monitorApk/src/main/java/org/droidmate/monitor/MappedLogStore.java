@@ -0,0 +1,518 @@
+package org.droidmate.monitor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Append-only store of encoded API logs in memory-mapped segment files, see {@link LogStoreMode#MappedFile}. The logs
+ * do not occupy the heap of the app and they survive a crash of the app: the store is opened again with the previous
+ * content when the monitor starts.
+ *
+ * </p><p>
+ * Each segment file has a fixed size and starts with a header:
+ * <pre>
+ * int magic ("DMLS"), int version, long base offset, long acknowledged offset, 8 reserved bytes</pre>
+ * followed by records: int length, event encoded as by {@link ApiLogSpillFile#encodeEvent(ApiLogEvent)}. The rest of the
+ * file is zeros, the first length of 0 marks the end of the records. The length of a record is written after its
+ * content, so a record interrupted by a crash is not read.
+ *
+ * </p><p>
+ * Threads logging API calls do not lock the store: each one reserves the space of its record in the last segment with
+ * an atomic add and writes it there. Records are then published in the order of their positions, a thread waits for
+ * the threads writing the records before its own, which are only copying a few bytes. Only the thread whose record does
+ * not fit in the last segment anymore locks the store, to start the next segment.
+ *
+ * </p><p>
+ * Offsets count the bytes of the records of all segments since the store was created. The base offset is the offset of
+ * the first record of a segment. The host reads ranges of the store ({@link #nextRegion(long)}) and acknowledges them
+ * by offset, only then their segments are deleted. Segments are only closed once the {@link FileRegion}s sent from them
+ * are released, see {@link FileRegion#release()}.
+ *
+ * </p><p>
+ * The files are written through the page cache of the kernel, so the logs survive the death of the app process. To
+ * survive a crash of the device too, as {@link LogStoreMode#Journal}, the store is flushed to storage as group
+ * commits by a background thread: every {@code flushIntervalMs} if there are logs to flush, and as soon as
+ * {@code flushBatch} logs were written since the last flush. Threads logging API calls only wake the background thread
+ * up, they never wait for the storage. The host reads the files with {@code JournalReader}.
+ * </p>
+ */
+class MappedLogStore {
+	static final int MAGIC = 0x444D4C53;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	private static final int BASE_OFFSET_POSITION = 8;
+	private static final int ACK_OFFSET_POSITION = 16;
+
+	private static final String FILE_PREFIX = "droidmate_monitor_log_";
+	private static final String FILE_SUFFIX = ".seg";
+
+	private static final class Segment {
+		final File file;
+		final RandomAccessFile randomAccessFile;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		final long baseOffset;
+		/**
+		 * Position of the next record, may be past the end of the segment once it is full
+		 */
+		final AtomicInteger reserved = new AtomicInteger(HEADER_SIZE);
+		/**
+		 * End of the records written completely, see {@link #publish(int, int)}
+		 */
+		final AtomicInteger committed = new AtomicInteger(HEADER_SIZE);
+		/**
+		 * End of the records once the segment is full, -1 until then
+		 */
+		volatile int limit = -1;
+		/**
+		 * End of the records flushed to storage, guarded by the store
+		 */
+		int flushedPosition = HEADER_SIZE;
+		/**
+		 * Held by the store until the segment is acknowledged, and by each {@link FileRegion} sent from it. Guarded by the
+		 * store.
+		 */
+		int references = 1;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			this.channel = randomAccessFile.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.baseOffset = buffer.getLong(BASE_OFFSET_POSITION);
+		}
+
+		Segment(File file, int size, long baseOffset) throws IOException {
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			this.channel = randomAccessFile.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.baseOffset = baseOffset;
+
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(BASE_OFFSET_POSITION, baseOffset);
+			buffer.putLong(ACK_OFFSET_POSITION, baseOffset);
+		}
+
+		long getEndOffset() {
+			return baseOffset + committed.get() - HEADER_SIZE;
+		}
+
+		int positionOf(long offset) {
+			return (int) (offset - baseOffset) + HEADER_SIZE;
+		}
+
+		/**
+		 * @return If the segment is full and all its records were written
+		 */
+		boolean isComplete() {
+			int end = limit;
+			return end >= 0 && committed.get() == end;
+		}
+
+		/**
+		 * Writes a record at a position reserved by the calling thread. Other threads write other records meanwhile.
+		 */
+		void write(int position, byte[] record) {
+			// The length is written last, see the class documentation
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(position + 4);
+			slice.put(record);
+			buffer.putInt(position, record.length);
+		}
+
+		/**
+		 * Makes the record at {@code position} visible to readers, once all records before it are. Readers then find
+		 * all records up to {@link #committed} written completely.
+		 */
+		void publish(int position, int recordSize) {
+			while (committed.get() != position)
+				Thread.yield();
+			committed.set(position + recordSize);
+		}
+
+		/**
+		 * @return Length of the record at {@code position}, or 0 if there is none
+		 */
+		int recordLengthAt(int position) {
+			if (position + 4 > buffer.capacity())
+				return 0;
+
+			int length = buffer.getInt(position);
+			return (length > 0 && position + 4 + length <= buffer.capacity()) ? length : 0;
+		}
+
+		void close() {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	private final int flushBatch;
+	/**
+	 * Segments not acknowledged yet, guarded by the store
+	 */
+	private final LinkedList<Segment> segments = new LinkedList<>();
+	/**
+	 * Segment new records are appended to, the last of {@link #segments}
+	 */
+	private volatile Segment current;
+	/**
+	 * Number of {@link #segments}, read without locking the store
+	 */
+	private volatile int segmentCount;
+	private final AtomicInteger unflushedRecords = new AtomicInteger(0);
+	/**
+	 * Thread flushing the store, see {@link #startFlushing(long)}
+	 */
+	private volatile Thread flusher;
+	private long ackOffset;
+	/**
+	 * End of the last region returned by {@link #nextRegion(long)}, the only offset the host may acknowledge
+	 */
+	private long regionEndOffset = -1;
+
+	/**
+	 * Opens the store in {@code directory}, with the logs left by a previous process, if any.
+	 *
+	 * @param segmentSize Size of each segment file, in bytes
+	 * @param maxBytes Maximum size of all segment files, new logs are rejected once it is reached
+	 */
+	MappedLogStore(File directory, int segmentSize, long maxBytes) throws IOException {
+		this(directory, segmentSize, maxBytes, 0);
+	}
+
+	/**
+	 * @param flushBatch Number of logs after which the thread started by {@link #startFlushing(long)} flushes them to
+	 *                   storage without waiting for its interval, 0 to flush on the interval only
+	 * @see #MappedLogStore(File, int, long)
+	 */
+	MappedLogStore(File directory, int segmentSize, long maxBytes, int flushBatch) throws IOException {
+		this.directory = directory;
+		this.flushBatch = flushBatch;
+		this.segmentSize = Math.max(HEADER_SIZE + 1024, segmentSize);
+		this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / this.segmentSize));
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+
+		if (files != null) {
+			// Names contain the zero padded base offset, so they sort in the order of the segments
+			Arrays.sort(files);
+			for (File file : files)
+				openExistingSegment(file);
+		}
+
+		if (segments.isEmpty())
+			segments.add(newSegment(0));
+
+		// Logs are appended to the last segment, the previous ones are full
+		for (Segment segment : segments) {
+			if (segment != segments.getLast())
+				segment.limit = segment.committed.get();
+		}
+		current = segments.getLast();
+		segmentCount = segments.size();
+
+		Segment first = segments.getFirst();
+		ackOffset = Math.max(first.baseOffset, first.buffer.getLong(ACK_OFFSET_POSITION));
+	}
+
+	private void openExistingSegment(File file) {
+		Segment segment = null;
+		try {
+			if (file.length() != segmentSize)
+				throw new IOException("Segment of a different size");
+
+			segment = new Segment(file, segmentSize);
+			if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION)
+				throw new IOException("Not a segment");
+			if (!segments.isEmpty() && segment.baseOffset != segments.getLast().getEndOffset())
+				throw new IOException("Segment does not follow the previous one");
+
+			int position = HEADER_SIZE;
+			int length;
+			while ((length = segment.recordLengthAt(position)) > 0)
+				position += 4 + length;
+			segment.reserved.set(position);
+			segment.committed.set(position);
+			segment.flushedPosition = position;
+
+			segments.add(segment);
+		} catch (IOException e) {
+			// Unreadable, its logs are lost
+			if (segment != null)
+				segment.close();
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+		}
+	}
+
+	private Segment newSegment(long baseOffset) throws IOException {
+		File file = new File(directory, String.format("%s%019d%s", FILE_PREFIX, baseOffset, FILE_SUFFIX));
+		return new Segment(file, segmentSize, baseOffset);
+	}
+
+	/**
+	 * Appends the event without locking the store, unless the last segment is full, see the class documentation.
+	 *
+	 * @return If the event was stored, false if the store is full or cannot be written
+	 */
+	boolean append(ApiLogEvent event) {
+		byte[] record = ApiLogSpillFile.encodeEvent(event).toByteArray();
+		int recordSize = 4 + record.length;
+		if (HEADER_SIZE + recordSize > segmentSize)
+			return false;
+
+		Segment segment = current;
+		int position;
+		while (true) {
+			if (segment.limit >= 0) {
+				if (segment != current) {
+					segment = current;
+					continue;
+				}
+				// Full, and no segment could be added when it was sealed
+				if (segmentCount >= maxSegments)
+					return false;
+				segment = nextSegment(segment, -1);
+			} else {
+				position = segment.reserved.getAndAdd(recordSize);
+				if (position + recordSize <= segmentSize)
+					break;
+
+				// Only the first record which does not fit starts before the end, it seals the segment
+				segment = nextSegment(segment, (position <= segmentSize) ? position : -1);
+			}
+
+			if (segment == null)
+				return false;
+		}
+
+		try {
+			segment.write(position, record);
+		} finally {
+			// The following records wait for this one
+			segment.publish(position, recordSize);
+		}
+
+		int unflushed = unflushedRecords.incrementAndGet();
+		if (flushBatch > 0 && unflushed == flushBatch) {
+			Thread thread = flusher;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param full  Segment in which a record did not fit
+	 * @param limit End of the records of {@code full}, if the calling thread has the first record which did not fit, or -1
+	 * @return Segment to append to instead, or null if the store is full or the segment cannot be created
+	 */
+	private synchronized Segment nextSegment(Segment full, int limit) {
+		if (limit >= 0) {
+			full.limit = limit;
+			notifyAll();
+		}
+
+		// The base offset of the next segment is only known once the segment is sealed
+		boolean interrupted = false;
+		while (full.limit < 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (current != full)
+			return current;
+		if (segments.size() >= maxSegments)
+			return null;
+
+		Segment segment;
+		try {
+			segment = newSegment(full.baseOffset + full.limit - HEADER_SIZE);
+		} catch (IOException e) {
+			return null;
+		}
+		segments.add(segment);
+		segmentCount = segments.size();
+		current = segment;
+		return segment;
+	}
+
+	/**
+	 * Flushes the logs written since the last flush to storage.
+	 */
+	synchronized void flush() {
+		unflushedRecords.set(0);
+
+		for (Segment segment : segments) {
+			int end = segment.committed.get();
+			if (end > segment.flushedPosition) {
+				segment.buffer.force();
+				segment.flushedPosition = end;
+			}
+		}
+	}
+
+	/**
+	 * Starts a daemon thread calling {@link #flush()} every {@code intervalMs} while there are logs to flush, and as soon
+	 * as {@code flushBatch} logs are waiting.
+	 */
+	void startFlushing(final long intervalMs) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				MonitorGuard.markMonitorThread();
+				long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+				long deadline = System.nanoTime() + intervalNanos;
+
+				while (!Thread.currentThread().isInterrupted()) {
+					// Woken up by append() when a batch is complete, may also return spuriously
+					LockSupport.parkNanos(this, Math.max(0, deadline - System.nanoTime()));
+
+					int unflushed = unflushedRecords.get();
+					boolean batchComplete = flushBatch > 0 && unflushed >= flushBatch;
+					if (!batchComplete && System.nanoTime() - deadline < 0)
+						continue;
+
+					if (unflushed > 0)
+						flush();
+					deadline = System.nanoTime() + intervalNanos;
+				}
+			}
+		});
+		thread.setDaemon(true);
+		flusher = thread;
+		thread.start();
+	}
+
+	/**
+	 * Returns the records which were not acknowledged yet, at most those of one segment. The header of the region
+	 * contains its start and end offsets, as varints. The region must be released once sent, see
+	 * {@link FileRegion#release()}.
+	 *
+	 * @param ack End offset of the previous region, to acknowledge it, or -1
+	 */
+	synchronized FileRegion nextRegion(long ack) {
+		if (ack >= 0 && ack == regionEndOffset)
+			acknowledge(ack);
+
+		final Segment segment = findSegment(ackOffset);
+		int start = segment.positionOf(ackOffset);
+		int end = segment.committed.get();
+		regionEndOffset = segment.baseOffset + end - HEADER_SIZE;
+
+		byte[] header = new BinaryWriter(20).writeVarLong(ackOffset).writeVarLong(regionEndOffset).toByteArray();
+		segment.references++;
+		return new FileRegion(header, segment.channel, start, end - start, new Runnable() {
+			@Override
+			public void run() {
+				release(segment);
+			}
+		});
+	}
+
+	/**
+	 * Decodes and acknowledges the oldest records which were not acknowledged yet.
+	 *
+	 * @param maxEvents Maximum number of records to decode
+	 */
+	synchronized List<ApiLogEvent> drain(int maxEvents) {
+		List<ApiLogEvent> events = new ArrayList<>();
+		long offset = ackOffset;
+
+		while (events.size() < maxEvents) {
+			Segment segment = findSegment(offset);
+			int position = segment.positionOf(offset);
+			if (position >= segment.committed.get())
+				break;
+
+			int length = segment.recordLengthAt(position);
+			byte[] record = new byte[length];
+			ByteBuffer view = segment.buffer.duplicate();
+			view.position(position + 4);
+			view.get(record);
+
+			try {
+				events.add(ApiLogSpillFile.readEvent(new BinaryReader(record)));
+			} catch (IOException e) {
+				// Corrupted record, skip it
+			}
+			offset += 4 + length;
+		}
+
+		acknowledge(offset);
+		return events;
+	}
+
+	/**
+	 * @return Segment containing the record at {@code offset}, or the segment being written if the offset is past all
+	 * the records written completely
+	 */
+	private Segment findSegment(long offset) {
+		for (Segment segment : segments) {
+			if (offset < segment.getEndOffset() || !segment.isComplete())
+				return segment;
+		}
+		return segments.getLast();
+	}
+
+	/**
+	 * Records the host received everything before {@code offset}, and deletes the segments it covers, except the last.
+	 */
+	private void acknowledge(long offset) {
+		ackOffset = offset;
+		regionEndOffset = -1;
+
+		while (segments.size() > 1 && segments.getFirst().isComplete() && segments.getFirst().getEndOffset() <= offset) {
+			release(segments.removeFirst());
+			segmentCount = segments.size();
+		}
+
+		segments.getFirst().buffer.putLong(ACK_OFFSET_POSITION, offset);
+	}
+
+	/**
+	 * Releases a reference to the segment, it is closed and deleted when there is none left.
+	 */
+	private synchronized void release(Segment segment) {
+		if (--segment.references > 0)
+			return;
+
+		segment.close();
+		//noinspection ResultOfMethodCallIgnored
+		segment.file.delete();
+	}
+}
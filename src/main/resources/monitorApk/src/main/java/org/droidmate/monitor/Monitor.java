@@ -30,13 +30,11 @@
 package org.droidmate.monitor;
 
 import android.annotation.SuppressLint;
-import android.content.Intent;
 import android.net.Uri;
 import android.util.Log;
 import org.droidmate.misc.MonitorConstants;
 
 import java.io.*;
-import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -72,37 +70,96 @@ import de.larma.arthook.*;
 @SuppressLint("NewApi")
 @SuppressWarnings("Convert2Diamond")
 public class Monitor {
+	/**
+	 * Settings read from the monitor configuration file, if any.
+	 */
+	final static MonitorConfig config = MonitorConfig.load(new File("#CONFIG_FILE_PATH"));
+	/**
+	 * Preset dictionary to compress the responses of the TCP server, generated from the monitored APIs, see
+	 * {@link WireCompression}
+	 */
+	final static String deflateDictionary = "#DEFLATE_DICTIONARY";
+	/**
+	 * Monitored APIs, the generated redirection code identifies them by their position in this table.
+	 */
+	final static ApiTable apis = new ApiTable(new ApiTable.Entry[]{
+			// GENERATED_CODE_INJECTION_POINT:API_TABLE
+	});
 	/**
 	 * <p> Contains API logs gathered by monitor, to be transferred to the host machine when appropriate command is read by the
 	 * TCP server.
 	 * <p>
 	 * </p><p>
-	 * Each logcat is a 3 element array obeying following contract:<br/>
+	 * When sent, each logcat is converted into a 3 element array obeying following contract:<br/>
 	 * logcat[0]: process ID of the logcat<br/>
 	 * logcat[1]: timestamp of the logcat<br/>
 	 * logcat[2]: the payload of the logcat (method name, parameter values, stack trace, etc.)
 	 * <p>
 	 * </p>
 	 *
-	 * @see org.droidmate.monitor.Monitor#addCurrentLogs(String)
+	 * @see org.droidmate.monitor.Monitor#addCurrentLogs(int, long, String, Object[])
+	 * @see org.droidmate.monitor.MonitorTcpServer#drainLogs()
 	 */
-	final static List<ArrayList<String>> currentLogs = new ArrayList<ArrayList<String>>();
-	private final static String ESCAPE_CHAR = "\\";
-	private final static String VALUE_STRING_ENCLOSING_CHAR = "'";
+	final static ApiLogBuffer currentLogs = new ApiLogBuffer(config, apis);
+	/**
+	 * Decides which calls are logged, when APIs are sampled or rate limited by the configuration.
+	 */
+	final static ApiSampler sampler = new ApiSampler(config, apis);
+	/**
+	 * Calls counted by monitors compiled with {@code MonitorMode.CountersOnly}.
+	 */
+	final static ApiCallCounters callCounters = new ApiCallCounters(apis.size());
+	/**
+	 * When not null, API logs are aggregated per call site here instead of being added to {@link #currentLogs}.
+	 */
+	final static CallSiteAggregator callSites = config.getBoolean(MonitorConfig.LOGS_AGGREGATE, false) ?
+			new CallSiteAggregator(config.getInt(MonitorConfig.LOGS_CAPACITY, 50000)) : null;
+	/**
+	 * Frames of the logged stack traces, when using {@link StackTraceMode#Interned} or structured records.
+	 */
+	final static StackFrameTable stackFrames = new StackFrameTable();
+	private final static StackTraceMode stackTraceMode = config.getEnum(MonitorConfig.STACKTRACE_MODE, StackTraceMode.class, StackTraceMode.Full);
+	private final static int stackTraceMaxDepth = config.getInt(MonitorConfig.STACKTRACE_MAX_DEPTH, 0);
+	/**
+	 * Renders the parameter values of the logged API calls.
+	 */
+	final static ApiParamRenderer paramRenderer = new ApiParamRenderer(config.getInt(MonitorConfig.LOGS_PARAM_MAX_CHARS, 0));
+	/**
+	 * Arguments of the monitored methods without parameters.
+	 */
+	private final static Object[] NO_ARGS = new Object[0];
 	private static final String FORMAT_STRING = "TId:%s;objCls:'%s';mthd:'%s';retCls:'void';params:'java.lang.String' '%s' 'java.lang.Object[]' %s;stacktrace:'%s'";
-	private static final SimpleDateFormat monitor_time_formatter = new SimpleDateFormat(MonitorConstants.Companion.getMonitor_time_formatter_pattern(), MonitorConstants.Companion.getMonitor_time_formatter_locale());
+	/**
+	 * {@code SimpleDateFormat} is not thread safe, each thread formatting timestamps has its own instance.
+	 *
+	 * @see #formatEpochNanos(long)
+	 */
+	private static final ThreadLocal<SimpleDateFormat> monitor_time_formatter = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(MonitorConstants.Companion.getMonitor_time_formatter_pattern(), MonitorConstants.Companion.getMonitor_time_formatter_locale());
+		}
+	};
 	//endregion
 
 	//region TCP server code
 	/**
-	 * @see #getNowDate()
+	 * @see #getNowEpochNanos()
 	 */
 	private static final Date startDate = new Date();
 	/**
-	 * @see #getNowDate()
+	 * @see #getNowEpochNanos()
 	 */
 	private static final long startNanoTime = System.nanoTime();
-	private final static HashMap<ApiPolicyId, ApiPolicy> apiPolicies = new HashMap<>();
+	/**
+	 * @see #getNowEpochNanos()
+	 */
+	private static final long startEpochNanos = startDate.getTime() * 1000000L;
+	/**
+	 * Policies are read from the policies file only when it changes, to allow restrictions to be dynamically changed
+	 * without paying file I/O on every monitored call.
+	 */
+	private final static ApiPolicyCache apiPolicies = new ApiPolicyCache(new File("#POLICIES_FILE_PATH"), apis);
 	private static MonitorTcpServer server;
 
 	//endregion
@@ -141,121 +198,248 @@ public class Monitor {
 		return tcpServer;
 	}
 
-	private static String escapeEnclosing(String paramString) {
-		return paramString.replace(VALUE_STRING_ENCLOSING_CHAR, ESCAPE_CHAR + VALUE_STRING_ENCLOSING_CHAR);
+	/**
+	 * Renders a parameter value for the logs, see {@link ApiParamRenderer}.
+	 */
+	static String objectToString(Object param) {
+		return paramRenderer.render(param);
 	}
 
-	private static String trimToLogSize(String paramString) {
-        /*
-        Logcat buffer size is 4096 [1]. I have encountered a case in which intent's string extra has eaten up entire logcat line,
-        preventing the remaining parts of the logcat (in particular, stack trace) to be transferred to DroidMate,
-        causing regex match fail. This is how the offending intent value looked like:
+	/**
+	 * Renders the stack trace as "->" separated frames, without the frames from the VM and the monitor itself and
+	 * limited to {@link #stackTraceMaxDepth} frames, see {@link StackTraceMode}.
+	 */
+	private static String getStackTrace() {
+		StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+
+		if (stackTraceMode == StackTraceMode.Interned)
+			return getInternedStackTrace(stackTrace);
 
-          intent:#Intent;action=com.picsart.studio.notification.action;S.extra.result.string=%7B%22response%22%3A%5B%7B%...
-          ...<and_so_on_until_entire_line_buffer_was_eaten>
+		int first = getFirstAppFrame(stackTrace);
+		int last = getLastAppFrame(stackTrace, first);
 
-        [1] http://stackoverflow.com/questions/6321555/what-is-the-size-limit-for-logcat
-        */
-		if (paramString.length() > 1024) {
-			return paramString.substring(0, 1024 - 24) + "_TRUNCATED_TO_1000_CHARS";
+		StringBuilder sb = new StringBuilder();
+		for (int i = first; i < last; i++) {
+			sb.append(stackTrace[i].toString());
+			if (i < last - 1)
+				sb.append("->");
 		}
-		return paramString;
+		return sb.toString();
 	}
 
-	static String objectToString(Object param) {
-		String result = "";
-		if (param == null)
-			result = "null";
-		else if (param instanceof android.content.Intent) {
-			String paramStr = ((android.content.Intent) param).toUri(Intent.URI_INTENT_SCHEME);
-			if (!paramStr.endsWith("end")) throw new AssertionError();
-			result = paramStr;
-		} else if (param.getClass().isArray()) {
-			result = Arrays.deepToString(convertToObjectArray(param));
-		} else {
-			result = param.toString();
+	/**
+	 * Renders the stack trace as "->" separated frame ids, see {@link #getAppFrameIds(StackTraceElement[])}.
+	 */
+	private static String getInternedStackTrace(StackTraceElement[] stackTrace) {
+		int[] frameIds = getAppFrameIds(stackTrace);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < frameIds.length; i++) {
+			sb.append(frameIds[i]);
+			if (i < frameIds.length - 1)
+				sb.append("->");
 		}
+		return sb.toString();
+	}
 
-		return escapeEnclosing(result);
+	/**
+	 * Called by the generated redirection code when producing structured records, see {@link #addCurrentRecord}.
+	 *
+	 * @return Id of the current stack trace in {@link #stackFrames}
+	 */
+	@SuppressWarnings("unused")
+	private static int getStackId() {
+		return stackFrames.internStack(getAppFrameIds(Thread.currentThread().getStackTrace()));
 	}
 
-	// Copied from http://stackoverflow.com/a/16428065/986533
-	private static Object[] convertToObjectArray(Object array) {
-		if (array == null) {
-			return null;
-		}
+	/**
+	 * @return Ids of the stack frames, without the frames from the VM and the monitor itself (which are always at the top)
+	 * and limited to {@link #stackTraceMaxDepth} frames.
+	 */
+	private static int[] getAppFrameIds(StackTraceElement[] stackTrace) {
+		int first = getFirstAppFrame(stackTrace);
+		int last = getLastAppFrame(stackTrace, first);
 
-		Class ofArray = array.getClass().getComponentType();
-		assert ofArray != null;
-		if (ofArray.isPrimitive()) {
-			ArrayList<Object> ar = new ArrayList<>();
-			int length = Array.getLength(array);
-			for (int i = 0; i < length; i++) {
-				ar.add(Array.get(array, i));
-			}
-			return ar.toArray();
-		} else {
-			return (Object[]) array;
+		int[] frameIds = new int[last - first];
+		for (int i = first; i < last; i++) {
+			frameIds[i - first] = stackFrames.intern(stackTrace[i]);
 		}
+		return frameIds;
 	}
 
-	private static String getStackTrace() {
-		StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < stackTrace.length; i++) {
-			sb.append(stackTrace[i].toString());
-			if (i < stackTrace.length - 1)
-				sb.append("->");
-		}
-		return sb.toString();
+	/**
+	 * @return Index of the first frame which is not from the VM or the monitor itself (which are always at the top)
+	 */
+	private static int getFirstAppFrame(StackTraceElement[] stackTrace) {
+		int first = 0;
+		while (first < stackTrace.length && isMonitorFrame(stackTrace[first]))
+			first++;
+		return first;
+	}
+
+	/**
+	 * @return Index after the last frame to log, according to {@link #stackTraceMaxDepth}
+	 */
+	private static int getLastAppFrame(StackTraceElement[] stackTrace, int first) {
+		if (stackTraceMaxDepth > 0)
+			return Math.min(stackTrace.length, first + stackTraceMaxDepth);
+		return stackTrace.length;
+	}
+
+	private static boolean isMonitorFrame(StackTraceElement frame) {
+		String className = frame.getClassName();
+		return className.startsWith("org.droidmate.monitor.") ||
+				className.equals("dalvik.system.VMStack") ||
+				className.equals("java.lang.Thread");
 	}
 
 	private static long getThreadId() {
 		return Thread.currentThread().getId();
 	}
 
+	/**
+	 * Called by monitor code before building the log of an API call, see {@link ApiSampler}. Calls to this methods are
+	 * generated in:
+	 * <pre>
+	 * org.droidmate.monitor.MethodGenerator#toRedirectCode</pre>
+	 *
+	 * @param apiId Id of the monitored method in {@link #apis}
+	 * @return If the call should be logged
+	 */
+	@SuppressWarnings("unused") // See javadoc
+	private static boolean shouldLog(int apiId) {
+		return sampler.shouldLog(apiId);
+	}
+
+	/**
+	 * Called by monitor code compiled with {@code MonitorMode.CountersOnly} instead of logging API calls. Calls to this
+	 * methods are generated in:
+	 * <pre>
+	 * org.droidmate.monitor.MethodGenerator#toRedirectCode</pre>
+	 *
+	 * @param apiId Id of the monitored method in {@link #apis}
+	 */
+	@SuppressWarnings("unused") // See javadoc
+	private static void countCall(int apiId) {
+		callCounters.count(apiId, getNowEpochNanos());
+	}
+
 	/**
 	 * <p>
-	 * Called by monitor code to logcat Android API calls. Calls to this methods are generated in:
+	 * Called by monitor code to log Android API calls. Calls to this methods are generated in:
 	 * <pre>
-	 * org.droidmate.monitor.RedirectionsGenerator#generateCtorCallsAndTargets(java.util.List)
-	 * org.droidmate.monitor.RedirectionsGenerator#generateMethodTargets(java.util.List)</pre>
+	 * org.droidmate.monitor.MethodGenerator#toRedirectCode</pre>
+	 * </p><p>
+	 * Calling threads do not synchronize with each other, each one appends to its own queue in {@link #currentLogs}.
+	 * Only the capture time is stored here, as a number, it is formatted when the logs are sent, see {@link #formatEpochNanos(long)}.
+	 *
+	 * </p><p>
+	 * The arguments are only rendered once it is known that the call is kept: repeated calls from an aggregated call
+	 * site are only counted and calls which the full buffer would drop are only counted as dropped.
 	 * </p>
-	 * This method has to be accessed in a synchronized manner to ensure proper access to the {@code currentLogs} list and also
-	 * to ensure calls to {@code SimpleDateFormat.format(new Date())} return correct results.
-	 * If there was interleaving between threads, the calls non-deterministically returned invalid dates,
-	 * which caused {@code LocalDateTime.parse()} on the host machine, called by
-	 * {@code org.droidmate.exploration.device.ApiLogsReader.extractLogcatMessagesFromTcpMessages()}
-	 * to fail with exceptions like
-	 * <pre>java.time.format.DateTimeParseException: Text '2015-08-21 019:15:43.607' could not be parsed at index 13</pre>
+	 *
+	 * @param apiId      Id of the monitored method in {@link #apis}
+	 * @param stackTrace Stack trace of the call, also part of the payload. Identifies the call site when aggregating logs
+	 * @param args       Arguments of the call, in the order of the parameters of the method
+	 * @return Payload of the log, to be written to logcat, or null when the call was not logged
+	 */
+	@SuppressWarnings("unused") // See javadoc
+	private static String addCurrentLogs(int apiId, long threadId, String stackTrace, Object[] args) {
+		return addCurrentLogs(apiId, threadId, stackTrace, args, null);
+	}
+
+	/**
+	 * As {@link #addCurrentLogs(int, long, String, Object[])}, for APIs with a custom {@code logID} expression in the API
+	 * list, which builds the payload before it is known whether the call is kept.
+	 *
+	 * @param payload Text describing the call, see {@link #getPayload(int, long, String, Object[])}
+	 */
+	@SuppressWarnings("unused") // See javadoc
+	private static String addCurrentLogs(int apiId, long threadId, String stackTrace, String payload) {
+		return addCurrentLogs(apiId, threadId, stackTrace, null, payload);
+	}
+
+	private static String addCurrentLogs(int apiId, long threadId, String stackTrace, Object[] args, String payload) {
+		long epochNanos = getNowEpochNanos();
+
+		if (callSites != null && callSites.addRepeat(apiId, stackTrace, epochNanos))
+			return null;
+		if (callSites == null && currentLogs.dropsNewEvents()) {
+			currentLogs.countDrop(apiId, apis.getKey(apiId));
+			return null;
+		}
+
+		if (payload == null)
+			payload = getPayload(apiId, threadId, stackTrace, args);
+		ApiLogEvent event = new ApiLogEvent(apis.getKey(apiId), apiId, threadId, epochNanos, payload);
+
+		if (callSites == null)
+			currentLogs.add(event);
+		else if (!callSites.add(stackTrace, event)) {
+			currentLogs.countDrop(event);
+			return null;
+		}
+
+		return payload;
+	}
+
+	/**
+	 * @return Text describing the call, as expected by the host machine:
+	 * {@code TId: <thread>;objCls: '<class>';mthd: '<method>';retCls: '<return class>';params: '<type>' '<value>' ...;stacktrace: '<stack trace>'}
+	 */
+	private static String getPayload(int apiId, long threadId, String stackTrace, Object[] args) {
+		ApiTable.Entry api = apis.get(apiId);
+
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("TId: ").append(threadId)
+				.append(";objCls: '").append(api.className)
+				.append("';mthd: '").append(api.methodName)
+				.append("';retCls: '").append(api.returnClass)
+				.append("';params:");
+		if (args.length == 0)
+			sb.append(' ');
+		for (int i = 0; i < args.length; i++) {
+			sb.append(" '").append(api.paramTypes[i]).append("' '");
+			paramRenderer.append(sb, args[i]);
+			sb.append('\'');
+		}
+		sb.append(";stacktrace: '").append(stackTrace).append('\'');
+
+		return sb.toString();
+	}
+
+	/**
 	 * <p>
-	 * Examples of two different values returned by two consecutive calls to the faulty method,
-	 * first bad, second good:
+	 * Called by monitor code compiled with {@code MonitorMode.Structured} to record Android API calls, instead of
+	 * {@link #addCurrentLogs(int, long, String, Object[])}. Calls to this methods are generated in:
 	 * <pre>
-	 * 2015-0008-0021 0019:0015:43.809
-	 * 2015-08-21 19:15:43.809
+	 * org.droidmate.monitor.MethodGenerator#toRedirectCode</pre>
+	 * </p><p>
+	 * No text is built for the call, the record is encoded by {@link ApiRecordEncoder} when sent to the host machine.
+	 * </p>
 	 *
-	 * 2015-08-21 19:015:43.804
-	 * 2015-08-21 19:15:43.804</pre>
-	 * More examples of faulty output:
-	 * <pre>
-	 *   2015-0008-05 09:24:12.163
-	 *   2015-0008-19 22:49:50.492
-	 *   2015-08-21 18:50:047.169
-	 *   2015-08-21 19:03:25.24
-	 *   2015-08-28 23:03:28.0453</pre>
+	 * @param apiId   Id of the monitored method in {@link #apis}
+	 * @param stackId Id of the stack trace, see {@link #getStackId()}
+	 * @param args    Arguments of the call, rendered by {@link #paramRenderer} unless the full buffer would drop the record
 	 */
 	@SuppressWarnings("unused") // See javadoc
-	private static void addCurrentLogs(String payload) {
-		synchronized (currentLogs) {
-//      Log.v(tag_mjt, "addCurrentLogs(" + payload + ")");
-			String now = getNowDate();
-
-//      Log.v(tag_mjt, "currentLogs.add(new ArrayList<String>(Arrays.asList(getPid(), now, payload)));");
-			currentLogs.add(new ArrayList<String>(Arrays.asList(getPid(), now, payload)));
+	private static void addCurrentRecord(int apiId, long threadId, int stackId, Object[] args) {
+		long epochNanos = getNowEpochNanos();
 
-//      Log.v(tag_mjt, "addCurrentLogs(" + payload + "): DONE");
+		if (currentLogs.dropsNewEvents()) {
+			currentLogs.countDrop(apiId, apis.getKey(apiId));
+			return;
 		}
+
+		String[] params = new String[args.length];
+		for (int i = 0; i < args.length; i++)
+			params[i] = paramRenderer.render(args[i]);
+
+		currentLogs.add(new ApiLogEvent(apis.getKey(apiId), apiId, threadId, epochNanos, stackId, params));
+	}
+
+	static String getNowDate() {
+		return formatEpochNanos(getNowEpochNanos());
 	}
 
 	/**
@@ -269,84 +453,77 @@ public class Monitor {
 	 * Instead, we construct Date only once ({@link #startDate}), on startup, remembering also its time offset from last boot
 	 * ({@link #startNanoTime}) and then we add offset to it in {@code System.nanoTime()},  which is precise.
 	 * <p>
+	 * </p><p>
+	 * Nothing is allocated and no lock is required, so it can be called on every monitored API call.
 	 * </p>
+	 *
+	 * @return Nanoseconds since the epoch
 	 */
-	static String getNowDate() {
-//    Log.v(tag_mjt, "final Date nowDate = new Date(startDate.getTime() + (System.nanoTime() - startNanoTime) / 1000000);");
-		final Date nowDate = new Date(startDate.getTime() + (System.nanoTime() - startNanoTime) / 1000000);
-
-//    Log.v(tag_mjt, "final String formattedDate = monitor_time_formatter.format(nowDate);");
+	static long getNowEpochNanos() {
+		return startEpochNanos + (System.nanoTime() - startNanoTime);
+	}
 
-//    Log.v(tag_mjt, "return formattedDate;");
-		return monitor_time_formatter.format(nowDate);
+	/**
+	 * <p>
+	 * Formats a timestamp obtained from {@link #getNowEpochNanos()} with {@code monitor_time_formatter_pattern}, to be sent
+	 * to the host machine.
+	 *
+	 * </p><p>
+	 * Each thread uses its own formatter, as {@code SimpleDateFormat} is not thread safe. When a formatter was shared,
+	 * interleaving calls non-deterministically returned invalid dates, which caused {@code LocalDateTime.parse()} on the
+	 * host machine, called by
+	 * {@code org.droidmate.exploration.device.ApiLogsReader.extractLogcatMessagesFromTcpMessages()}
+	 * to fail with exceptions like
+	 * <pre>java.time.format.DateTimeParseException: Text '2015-08-21 019:15:43.607' could not be parsed at index 13</pre>
+	 * <p>
+	 * Examples of two different values returned by two consecutive calls to the faulty method,
+	 * first bad, second good:
+	 * <pre>
+	 * 2015-0008-0021 0019:0015:43.809
+	 * 2015-08-21 19:15:43.809
+	 *
+	 * 2015-08-21 19:015:43.804
+	 * 2015-08-21 19:15:43.804</pre>
+	 * More examples of faulty output:
+	 * <pre>
+	 *   2015-0008-05 09:24:12.163
+	 *   2015-0008-19 22:49:50.492
+	 *   2015-08-21 18:50:047.169
+	 *   2015-08-21 19:03:25.24
+	 *   2015-08-28 23:03:28.0453</pre>
+	 * </p>
+	 */
+	static String formatEpochNanos(long epochNanos) {
+		return monitor_time_formatter.get().format(new Date(epochNanos / 1000000L));
 	}
 
 	static String getPid() {
 		return String.valueOf(android.os.Process.myPid());
 	}
 
-	private static boolean skipLine(String line) {
-		return (line.trim().length() == 0) ||
-				!line.contains("\t") ||
-				line.startsWith("#");
-	}
-
-	private static void processLine(String line) {
-		if (skipLine(line))
-			return;
-
-		// first field is method signature
-		// last field is policy
-		// anything in between are URIs
-		String[] lineData = line.split("\t");
-
-		String methodName = lineData[0].replaceAll("\\s+", "");
-		String policyStr = lineData[lineData.length - 1].trim();
-
-		ApiPolicy policy = ApiPolicy.valueOf(policyStr);
-		List<String> uriList = new ArrayList<>(Arrays.asList(lineData).subList(1, lineData.length - 1));
-
-		apiPolicies.put(new ApiPolicyId(methodName, uriList.toArray(new String[0])), policy);
-	}
-
-	private static void initializeApiPolicies() throws Exception {
-		// loads every time to allow restrictions to be dynamically changed
-		apiPolicies.clear();
-
-		File policiesFile = new File("#POLICIES_FILE_PATH");
-		if (policiesFile.exists()) {
-			try (BufferedReader reader = new BufferedReader(new FileReader(policiesFile))) {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					processLine(line);
-				}
-			}
-		}
-		//else
-		//  Log.w(MonitorConstants.Companion.getTag_srv(), "Api policies file not found. Continuing with default behavior (Allow)");
+	/**
+	 * Re-reads the policies file, independently of it having changed or not.
+	 *
+	 * @return Number of policies loaded
+	 */
+	static int reloadPolicies() {
+		return apiPolicies.reload();
 	}
 
 	/**
 	 * Check is the API call should be allowed or not
 	 *
-	 * @param methodName Method that should have its policy checked
-	 * @param uriList    List of resources being accessed by the method (if any)
+	 * @param apiId   Id of the method that should have its policy checked, in {@link #apis}
+	 * @param uriList List of resources being accessed by the method (if any)
 	 * @return How how DroidMate behave regarding the policy. Default return is ApiPolicy.Allow
 	 */
 	@SuppressWarnings("unused")
-	private static ApiPolicy getPolicy(String methodName, List<Uri> uriList) {
+	private static ApiPolicy getPolicy(int apiId, List<Uri> uriList) {
 		try {
-			initializeApiPolicies();
-
-			for (ApiPolicyId apiId : apiPolicies.keySet()) {
-				List<String> uriListStr = new ArrayList<>();
-				for (Uri uri : uriList) {
-					uriListStr.add(uri.toString());
-				}
+			ApiPolicy policy = apiPolicies.getSnapshot().find(apiId, uriList);
 
-				if (apiId.affects(methodName, uriListStr))
-					return apiPolicies.get(apiId);
-			}
+			if (policy != null)
+				return policy;
 		} catch (Exception e) {
 			// Default behavior is to allow
 			return ApiPolicy.Allow;
@@ -372,17 +549,31 @@ public class Monitor {
 	 */
 	@SuppressWarnings("unused")
 	public void init(android.content.Context initContext) {
-		Log.v(MonitorConstants.Companion.getTag_mjt(), "init(): entering");
-		//region Helper code
-		if (server == null) {
-			Log.w(MonitorConstants.Companion.getTag_mjt(), "init(): didn't set context for MonitorTcpServer, as the server is null.");
-		} else {
-			server.context = initContext;
-		}
+		// The monitored APIs called here, once hooked, are not calls of the app
+		MonitorGuard guard = MonitorGuard.enter();
+		try {
+			Log.v(MonitorConstants.Companion.getTag_mjt(), "init(): entering");
+			//region Helper code
+			if (server == null) {
+				Log.w(MonitorConstants.Companion.getTag_mjt(), "init(): didn't set context for MonitorTcpServer, as the server is null.");
+			} else {
+				server.context = initContext;
+			}
 
-		ArtHook.hook(Monitor.class);
+			currentLogs.setSpillDirectory(initContext.getCacheDir());
+			try {
+				currentLogs.setStoreDirectory(initContext.getFilesDir());
+			} catch (IOException e) {
+				Log.e(MonitorConstants.Companion.getTag_mjt(), "init(): failed to open the log store, logs are kept in memory", e);
+			}
+
+			ArtHook.hook(Monitor.class);
 
-		Log.d(MonitorConstants.Companion.getTag_mjt(), MonitorConstants.Companion.getMsgPrefix_init_success() + initContext.getPackageName());
+			Log.d(MonitorConstants.Companion.getTag_mjt(), MonitorConstants.Companion.getMsgPrefix_init_success() + initContext.getPackageName());
+		} finally {
+			if (guard != null)
+				guard.exit();
+		}
 	}
 
 	//endregion
@@ -0,0 +1,195 @@
+package org.droidmate.monitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Settings of the monitor, read once from a java properties file when the monitor is loaded. Missing or invalid
+ * values fall back to the defaults, so the monitor behaves as usual when the file does not exist.
+ *
+ * </p><p>
+ * Example:
+ * <pre>
+ * logs.capacity=50000
+ * logs.overflow=DropOldest
+ * logs.aggregate=false</pre>
+ * </p>
+ */
+class MonitorConfig {
+	/**
+	 * Maximum number of API logs kept in memory until the host machine requests them.
+	 */
+	static final String LOGS_CAPACITY = "logs.capacity";
+	/**
+	 * What to do with new API logs when {@link #LOGS_CAPACITY} is reached, see {@link LogOverflowPolicy}.
+	 */
+	static final String LOGS_OVERFLOW = "logs.overflow";
+	/**
+	 * Maximum size, in bytes, of the file used by {@link LogOverflowPolicy#Spill}.
+	 */
+	static final String LOGS_SPILL_MAX_BYTES = "logs.spill_max_bytes";
+	/**
+	 * Where API logs are kept until the host machine requests them, see {@link LogStoreMode}.
+	 */
+	static final String LOGS_STORE = "logs.store";
+	/**
+	 * Size, in bytes, of each file of {@link LogStoreMode#MappedFile}.
+	 */
+	static final String LOGS_STORE_SEGMENT_BYTES = "logs.store_segment_bytes";
+	/**
+	 * Maximum size, in bytes, of all files of {@link LogStoreMode#MappedFile}. Further logs are dropped.
+	 */
+	static final String LOGS_STORE_MAX_BYTES = "logs.store_max_bytes";
+	/**
+	 * Maximum time, in milliseconds, logs of {@link LogStoreMode#Journal} wait to be flushed to storage.
+	 */
+	static final String JOURNAL_FLUSH_INTERVAL_MS = "journal.flush_interval_ms";
+	/**
+	 * Number of logs of {@link LogStoreMode#Journal} after which they are flushed to storage without waiting for
+	 * {@link #JOURNAL_FLUSH_INTERVAL_MS}. 0 to flush on the interval only.
+	 */
+	static final String JOURNAL_FLUSH_BATCH = "journal.flush_batch";
+	/**
+	 * If true, API logs are aggregated per call site (API and stack trace) instead of being stored individually,
+	 * see {@link CallSiteAggregator}. {@link #LOGS_CAPACITY} then limits the number of call sites. Only the first call of
+	 * each site is sent as a log, the number of calls is sent by {@code MonitorTcpServer.srvCmd_get_call_sites}. Only
+	 * applies to text logs, not to structured records.
+	 */
+	static final String LOGS_AGGREGATE = "logs.aggregate";
+	/**
+	 * Maximum number of characters of each parameter value in the API logs, 0 for no limit, see {@link ApiParamRenderer}.
+	 */
+	static final String LOGS_PARAM_MAX_CHARS = "logs.param_max_chars";
+	/**
+	 * Maximum number of API logs sent per answer to {@code MonitorTcpServer.srvCmd_get_logs_chunk}.
+	 */
+	static final String LOGS_CHUNK_SIZE = "logs.chunk_size";
+	/**
+	 * Maximum number of API logs per batch pushed to a subscribed host, see {@code MonitorTcpServer.srvCmd_subscribe}.
+	 * A batch is pushed as soon as this many logs are available.
+	 */
+	static final String PUSH_BATCH_SIZE = "push.batch_size";
+	/**
+	 * Maximum time, in milliseconds, API logs wait before being pushed to a subscribed host.
+	 */
+	static final String PUSH_BATCH_INTERVAL_MS = "push.batch_interval_ms";
+	/**
+	 * Time, in milliseconds, after which an empty batch is pushed to a subscribed host when there were no logs, so that
+	 * a host which disconnected is noticed.
+	 */
+	static final String PUSH_HEARTBEAT_INTERVAL_MS = "push.heartbeat_interval_ms";
+	/**
+	 * Minimum size, in bytes, of the responses compressed for hosts which accept it, see {@link WireCompression}.
+	 * A negative value disables compression.
+	 */
+	static final String WIRE_DEFLATE_MIN_BYTES = "wire.deflate_min_bytes";
+	/**
+	 * How the TCP server handles connections, see {@link ServerMode}. {@link ServerMode#Blocking} by default.
+	 */
+	static final String SERVER_MODE = "server.mode";
+	/**
+	 * Time, in milliseconds, after which connections kept open by the host without any transfer are closed.
+	 */
+	static final String SERVER_IDLE_TIMEOUT_MS = "server.idle_timeout_ms";
+	/**
+	 * Prefix of the keys setting the sampling rate of an API: {@code sampling.<API>=N} logs one of every N calls,
+	 * starting with the first. See {@link ApiSampler} for how APIs are named, {@code sampling.default} applies to all
+	 * others.
+	 */
+	static final String SAMPLING_PREFIX = "sampling.";
+	/**
+	 * Prefix of the keys setting the rate limit of an API: {@code ratelimit.<API>=R} or {@code ratelimit.<API>=R,B} logs
+	 * at most R calls per second, with bursts of up to B calls (R by default). Calls are sampled before being rate limited.
+	 */
+	static final String RATE_LIMIT_PREFIX = "ratelimit.";
+	/**
+	 * How stack traces are logged, see {@link StackTraceMode}.
+	 */
+	static final String STACKTRACE_MODE = "stacktrace.mode";
+	/**
+	 * Maximum number of frames logged per stack trace, in all {@link StackTraceMode}s, 0 for no limit. Frames of the
+	 * monitor itself are never logged.
+	 */
+	static final String STACKTRACE_MAX_DEPTH = "stacktrace.max_depth";
+
+	/**
+	 * If true, the TCP server checks that no log sent to the host machine comes from the monitor itself. Only meant for
+	 * debugging the monitor, see {@link MonitorGuard}.
+	 */
+	static final String DEBUG_VALIDATE_LOGS = "debug.validate_logs";
+
+	private final Properties properties;
+
+	private MonitorConfig(Properties properties) {
+		this.properties = properties;
+	}
+
+	static MonitorConfig load(File configFile) {
+		Properties properties = new Properties();
+
+		if (configFile.exists()) {
+			try (InputStream input = new FileInputStream(configFile)) {
+				properties.load(input);
+			} catch (Exception e) {
+				// Continue with default values
+				properties.clear();
+			}
+		}
+
+		return new MonitorConfig(properties);
+	}
+
+	/**
+	 * @return The value of {@code key}, trimmed, or null if it has none
+	 */
+	String getString(String key) {
+		String value = properties.getProperty(key);
+		return (value != null) ? value.trim() : null;
+	}
+
+	/**
+	 * @return If any key starts with {@code prefix}
+	 */
+	boolean hasKeysWithPrefix(String prefix) {
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	int getInt(String key, int defaultValue) {
+		try {
+			String value = properties.getProperty(key);
+			return (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	long getLong(String key, long defaultValue) {
+		try {
+			String value = properties.getProperty(key);
+			return (value != null) ? Long.parseLong(value.trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	boolean getBoolean(String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		return (value != null) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+	}
+
+	<E extends Enum<E>> E getEnum(String key, Class<E> enumClass, E defaultValue) {
+		try {
+			String value = properties.getProperty(key);
+			return (value != null) ? Enum.valueOf(enumClass, value.trim()) : defaultValue;
+		} catch (IllegalArgumentException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.droidmate.monitor;
+
+/**
+ * <p>
+ * Tells if the monitor itself is running on the current thread, so that the monitored APIs it calls are not logged.
+ *
+ * </p><p>
+ * The generated redirection code enters the guard while logging the call and looking up its policy, and calls the
+ * original method right away when the guard is already active. The threads of the monitor (TCP server, push streams,
+ * log store flusher) are inside the monitor for their whole life, see {@link #markMonitorThread()}.
+ * </p>
+ */
+final class MonitorGuard {
+	private static final ThreadLocal<MonitorGuard> current = new ThreadLocal<MonitorGuard>() {
+		@Override
+		protected MonitorGuard initialValue() {
+			return new MonitorGuard();
+		}
+	};
+
+	private boolean active;
+
+	private MonitorGuard() {
+	}
+
+	/**
+	 * @return Guard of the current thread, to be exited once the monitor is done, or null when the monitor is already
+	 * running on this thread
+	 */
+	static MonitorGuard enter() {
+		MonitorGuard guard = current.get();
+		if (guard.active)
+			return null;
+
+		guard.active = true;
+		return guard;
+	}
+
+	void exit() {
+		active = false;
+	}
+
+	/**
+	 * Marks the current thread as running monitor code only, monitored APIs it calls are never logged.
+	 */
+	static void markMonitorThread() {
+		current.get().active = true;
+	}
+}
@@ -0,0 +1,69 @@
+package org.droidmate.monitor;
+
+import android.util.Log;
+import org.droidmate.misc.MonitorConstants;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Socket;
+
+/**
+ * <p>
+ * Sends data to a connection in push mode, in its own thread, so that the server keeps accepting other connections.
+ *
+ * </p><p>
+ * Each batch returned by {@link TcpServerBase#awaitPushBatch()} is written as a {@link WireProtocol} response frame with
+ * the {@link WireProtocol#FLAG_PUSH} flag. Writes block while the host is not reading, which in turn stops the batches
+ * from being taken: the data stays in the monitor, bounded as configured for its log buffer. The stream ends when the
+ * host closes the connection, which is noticed on the next write: batches may be empty, to act as heartbeats.
+ * </p>
+ */
+class MonitorPushStream<ServerInputT extends Serializable, ServerOutputT extends Serializable> implements Runnable {
+	private final TcpServerBase<ServerInputT, ServerOutputT> server;
+	private final Socket socket;
+	private final DataOutputStream output;
+	private final WireCompression compression;
+
+	/**
+	 * @param compression Compression accepted by the host, or null if none
+	 */
+	MonitorPushStream(TcpServerBase<ServerInputT, ServerOutputT> server, Socket socket, DataOutputStream output, WireCompression compression) {
+		this.server = server;
+		this.socket = socket;
+		this.output = output;
+		this.compression = compression;
+	}
+
+	Thread start() {
+		Thread thread = new Thread(this);
+		thread.setDaemon(true); // ensure termination if the main thread dies
+		thread.start();
+		return thread;
+	}
+
+	public void run() {
+		MonitorGuard.markMonitorThread();
+		Log.v(MonitorConstants.Companion.getTag_run(), String.format("Push stream started / port:%d", server.port));
+		try {
+			while (!socket.isClosed()) {
+				ServerOutputT batch = server.awaitPushBatch();
+				if (batch == null)
+					break;
+
+				WireProtocol.writeResponse(output, batch, WireProtocol.FLAG_PUSH, compression);
+			}
+		} catch (IOException e) {
+			Log.v(MonitorConstants.Companion.getTag_run(), String.format("Push stream closed by the host / port:%d", server.port));
+		} catch (InterruptedException e) {
+			Log.v(MonitorConstants.Companion.getTag_run(), String.format("Push stream interrupted / port:%d", server.port));
+		} finally {
+			server.endSubscription();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package org.droidmate.monitor;
+
+import android.util.Log;
+import org.droidmate.misc.MonitorConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Serves all connections of the monitor TCP server from a single thread with non-blocking I/O, so that a slow or hung
+ * host does not delay the requests of other hosts, e.g. connection checks of a second tool attached to the device.
+ *
+ * </p><p>
+ * The requests are answered by a pool of worker threads while this thread only transfers bytes: it keeps accepting
+ * connections and sending responses while a large response, e.g. to {@code srvCmd_get_logs}, is built. Requests of
+ * different connections are answered concurrently, only the state of the server is accessed by one request at a time,
+ * see {@link MonitorTcpServer#OnServerRequest(String)}. Encoding and compressing a response does not delay the other
+ * connections.
+ *
+ * </p><p>
+ * Each connection buffers the bytes of its requests until a request is complete, and the bytes of its responses until
+ * the host reads them. Both protocols are supported, as in {@link MonitorServerRunnable}: requests are answered in order
+ * and the connection is closed after the first one, unless it was sent with {@link WireProtocol#FLAG_KEEP_ALIVE}.
+ * Connections without any transfer for {@link TcpServerBase#idleTimeoutMs} are closed. Unlike in
+ * {@link MonitorServerRunnable}, an invalid request only closes its connection, not the server.
+ * </p>
+ */
+class MonitorSelectorServerRunnable<ServerInputT extends Serializable, ServerOutputT extends Serializable> implements Runnable {
+	private static final int SELECT_TIMEOUT_MS = 1000;
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+	/**
+	 * Larger requests close the connection. Requests are short commands, see {@code WireProtocol.MAX_REQUEST_SIZE}.
+	 */
+	private static final int MAX_PENDING_INPUT = 128 * 1024;
+	/**
+	 * Requests answered at the same time at most, the others wait for a free worker
+	 */
+	private static final int WORKER_THREADS = 4;
+
+	private final TcpServerBase<ServerInputT, ServerOutputT> server;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	/**
+	 * Connections to switch to push mode once the selected keys were processed
+	 */
+	private final List<SelectionKey> subscribed = new ArrayList<>();
+	/**
+	 * Answers the requests, see {@link #answer(SelectionKey, Serializable, boolean, boolean, WireCompression)}
+	 */
+	private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					MonitorGuard.markMonitorThread();
+					runnable.run();
+				}
+			});
+			thread.setDaemon(true); // ensure termination if the main thread dies
+			return thread;
+		}
+	});
+	/**
+	 * Responses built by the {@link #workers}, to be sent by the selector thread
+	 */
+	private final ConcurrentLinkedQueue<Response> responses = new ConcurrentLinkedQueue<>();
+	private Selector selector;
+
+	MonitorSelectorServerRunnable(TcpServerBase<ServerInputT, ServerOutputT> server) {
+		this.server = server;
+	}
+
+	private static final class Connection {
+		final SocketChannel channel;
+		/**
+		 * Bytes received but not processed yet, in read mode
+		 */
+		ByteBuffer input = ByteBuffer.allocate(0);
+		/**
+		 * Responses not sent yet, {@link ByteBuffer}s and {@link FileRegion}s
+		 */
+		final LinkedList<Object> output = new LinkedList<>();
+		long lastTransferNanos = System.nanoTime();
+		/**
+		 * No more requests are read from the connection, it is closed once the responses are sent
+		 */
+		boolean closeAfterWrite = false;
+		/**
+		 * The connection is switched to push mode once the responses are sent
+		 */
+		boolean subscribeAfterWrite = false;
+		/**
+		 * Compression accepted by the host with its last request, null if none
+		 */
+		WireCompression compression = null;
+
+		/**
+		 * A request is being answered by the {@link #workers}, further requests wait until its response is queued
+		 */
+		boolean answering = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private static final class Response {
+		final SelectionKey key;
+		/**
+		 * {@link ByteBuffer}s and {@link FileRegion}s, null if the response could not be built
+		 */
+		final List<Object> output;
+		final boolean keepAlive;
+		final boolean closeServer;
+		final boolean subscribe;
+
+		Response(SelectionKey key, List<Object> output, boolean keepAlive, boolean closeServer, boolean subscribe) {
+			this.key = key;
+			this.output = output;
+			this.keepAlive = keepAlive;
+			this.closeServer = closeServer;
+			this.subscribe = subscribe;
+		}
+	}
+
+	public void run() {
+		MonitorGuard.markMonitorThread();
+		Log.v(MonitorConstants.Companion.getTag_run(), String.format("run(): entering port:%d", server.port));
+
+		ServerSocketChannel serverChannel;
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			try {
+				serverChannel.socket().bind(new InetSocketAddress(server.port));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				serverChannel.close();
+				selector.close();
+				throw e;
+			}
+		} catch (IOException e) {
+			Log.d(MonitorConstants.Companion.getTag_run(), "serverChannel.bind(" + server.port + "): FAILURE " +
+					"aborting further thread execution.");
+			server.onStarted(null, e);
+			return;
+		}
+
+		Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverChannel.bind(%d): SUCCESS", server.port));
+		server.onStarted(serverChannel.socket(), null);
+
+		try {
+			while (serverChannel.isOpen()) {
+				selector.select(SELECT_TIMEOUT_MS);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+						accept(serverChannel, selector);
+					else
+						serve(key);
+				}
+
+				sendResponses();
+
+				if (!subscribed.isEmpty())
+					startPushStreams(selector);
+
+				closeIdleConnections(selector);
+			}
+
+			Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverSocket.isClosed() / port:%d", server.port));
+		} catch (IOException e) {
+			Log.e(MonitorConstants.Companion.getTag_run(), "! Exception was thrown while operating monitor TCP server.", e);
+			server.closeServerSocket();
+		} finally {
+			workers.shutdownNow();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection)
+					close(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+
+		Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverChannel.accept(): SUCCESS / port:%d", server.port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+	}
+
+	private void serve(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			if (key.isReadable())
+				read(key, connection);
+
+			if (key.isValid() && (key.isWritable() || !connection.output.isEmpty()))
+				write(key, connection);
+
+		} catch (IOException e) {
+			Log.v(MonitorConstants.Companion.getTag_run(), String.format("Connection closed: %s / port:%d", e.getMessage(), server.port));
+			close(key);
+		}
+	}
+
+	private void read(SelectionKey key, Connection connection) throws IOException {
+		readBuffer.clear();
+		int read = connection.channel.read(readBuffer);
+		if (read < 0)
+			throw new EOFException("closed by the host");
+		if (read == 0)
+			return;
+
+		connection.lastTransferNanos = System.nanoTime();
+		if (connection.closeAfterWrite || connection.subscribeAfterWrite)
+			return; // Further requests are ignored
+
+		readBuffer.flip();
+		ByteBuffer input = ByteBuffer.allocate(connection.input.remaining() + readBuffer.remaining());
+		input.put(connection.input).put(readBuffer).flip();
+		if (input.remaining() > MAX_PENDING_INPUT)
+			throw new IOException("request too large");
+		connection.input = input;
+
+		processRequests(key, connection);
+	}
+
+	/**
+	 * Hands the next request received completely so far to the {@link #workers}. Requests of a connection are answered in
+	 * order, the next one once the response to the previous one is queued.
+	 */
+	private void processRequests(SelectionKey key, Connection connection) throws IOException {
+		if (connection.answering || connection.closeAfterWrite || connection.subscribeAfterWrite)
+			return;
+
+		if (connection.input.hasRemaining()) {
+			// The protocol is told from the first 2 bytes
+			if (connection.input.remaining() < 2)
+				return;
+
+			ServerInputT serverInput;
+			boolean wireProtocol = WireProtocol.isWireFrame(connection.input);
+			boolean keepAlive;
+
+			if (wireProtocol) {
+				WireProtocol.Request request = WireProtocol.parseRequest(connection.input);
+				if (request == null)
+					return;
+				keepAlive = request.isKeepAlive();
+				connection.compression = request.acceptsDeflate() ? server.compression : null;
+
+				@SuppressWarnings("unchecked")
+				// Without this var here, there is no place to put the "unchecked" suppression warning.
+						ServerInputT localVarForSuppressionAnnotation = (ServerInputT) request.command;
+				serverInput = localVarForSuppressionAnnotation;
+			} else {
+				Object object = parseJavaRequest(connection.input);
+				if (object == null)
+					return;
+				keepAlive = false;
+
+				@SuppressWarnings("unchecked")
+				// Without this var here, there is no place to put the "unchecked" suppression warning.
+						ServerInputT localVarForSuppressionAnnotation = (ServerInputT) object;
+				serverInput = localVarForSuppressionAnnotation;
+			}
+
+			connection.answering = true;
+			answer(key, serverInput, wireProtocol, keepAlive, connection.compression);
+		}
+	}
+
+	/**
+	 * Builds the response to the request on the {@link #workers}, then queues it for {@link #sendResponses()}.
+	 */
+	private void answer(final SelectionKey key, final ServerInputT serverInput, final boolean wireProtocol,
+			final boolean keepAlive, final WireCompression compression) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Object> output = new ArrayList<>();
+				boolean closeServer = false;
+				boolean subscribe = false;
+				ServerOutputT serverOutput = null;
+
+				try {
+					Log.d(MonitorConstants.Companion.getTag_run(), String.format("OnServerRequest(%s) / port:%d", serverInput, server.port));
+					if (server.isSubscriptionRequest(serverInput)) {
+						// Only connections of the binary protocol can be switched to push mode
+						subscribe = wireProtocol && server.trySubscribe();
+						serverOutput = server.getSubscriptionAnswer(subscribe);
+					} else
+						serverOutput = server.OnServerRequest(serverInput);
+
+					if (wireProtocol && serverOutput instanceof FileRegion) {
+						output.add(ByteBuffer.wrap(WireProtocol.encodeRegionHeader((FileRegion) serverOutput, 0)));
+						// Released once sent, see flush()
+						output.add(serverOutput);
+						serverOutput = null;
+					} else if (wireProtocol)
+						output.add(ByteBuffer.wrap(WireProtocol.encodeResponse(serverOutput, 0, compression)));
+					else
+						output.add(ByteBuffer.wrap(encodeJavaResponse(serverOutput)));
+
+					closeServer = server.shouldCloseServerSocket(serverInput);
+				} catch (IOException | RuntimeException e) {
+					Log.e(MonitorConstants.Companion.getTag_run(), "! Exception was thrown while answering " + serverInput, e);
+					releaseRegions(output);
+					output = null;
+					if (subscribe)
+						server.endSubscription();
+					subscribe = false;
+				} finally {
+					// Regions sent with Java serialization were copied into the response
+					if (serverOutput instanceof FileRegion)
+						((FileRegion) serverOutput).release();
+				}
+
+				responses.add(new Response(key, output, keepAlive, closeServer, subscribe));
+				selector.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Queues the responses built by the {@link #workers} on their connections and processes the next requests.
+	 */
+	private void sendResponses() {
+		Response response;
+		while ((response = responses.poll()) != null) {
+			SelectionKey key = response.key;
+			Connection connection = (Connection) key.attachment();
+			connection.answering = false;
+
+			if (!key.isValid()) {
+				// Closed meanwhile
+				if (response.output != null)
+					releaseRegions(response.output);
+				if (response.subscribe)
+					server.endSubscription();
+				continue;
+			}
+
+			try {
+				if (response.output == null)
+					throw new IOException("no response");
+
+				connection.output.addAll(response.output);
+				connection.closeAfterWrite = !response.keepAlive;
+
+				if (response.closeServer) {
+					Log.v(MonitorConstants.Companion.getTag_run(), String.format("shouldCloseServerSocket(): true / port:%d", server.port));
+					// Try to send the response before the server closes all connections
+					flush(connection);
+					server.closeServerSocket();
+					connection.closeAfterWrite = true;
+				} else if (response.subscribe) {
+					connection.subscribeAfterWrite = true;
+					connection.closeAfterWrite = false;
+				}
+
+				processRequests(key, connection);
+				write(key, connection);
+			} catch (IOException e) {
+				Log.v(MonitorConstants.Companion.getTag_run(), String.format("Connection closed: %s / port:%d", e.getMessage(), server.port));
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Reads the request only once it was completely received, which is told from its length: requests are strings, see
+	 * {@link SerializationHelper#getSerializedStringLength(ByteBuffer)}.
+	 *
+	 * @return The deserialized request, or null if it was not completely received yet. In that case the position of
+	 * {@code buffer} is left unchanged.
+	 */
+	private static Object parseJavaRequest(ByteBuffer buffer) throws IOException {
+		int length = SerializationHelper.getSerializedStringLength(buffer);
+		if (length < 0)
+			return null;
+
+		ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		Object request;
+		try {
+			request = SerializationHelper.readObjectFromStream(new DataInputStream(bytes));
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+
+		buffer.position(buffer.position() + length);
+		return request;
+	}
+
+	private static byte[] encodeJavaResponse(Serializable response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SerializationHelper.writeObjectToStream(new DataOutputStream(bytes), response);
+		return bytes.toByteArray();
+	}
+
+	private void write(SelectionKey key, Connection connection) throws IOException {
+		flush(connection);
+
+		if (!connection.output.isEmpty()) {
+			// Wait until the host reads more
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+
+		if (connection.subscribeAfterWrite)
+			subscribed.add(key);
+		else if (connection.closeAfterWrite)
+			close(key);
+	}
+
+	private void flush(Connection connection) throws IOException {
+		while (!connection.output.isEmpty()) {
+			Object next = connection.output.getFirst();
+			boolean sent;
+
+			if (next instanceof FileRegion) {
+				// Sent from the file by the kernel, without copies into the heap
+				FileRegion region = (FileRegion) next;
+				if (region.transferTo(connection.channel) > 0)
+					connection.lastTransferNanos = System.nanoTime();
+				sent = !region.hasRemaining();
+				if (sent)
+					region.release();
+			} else {
+				ByteBuffer buffer = (ByteBuffer) next;
+				if (connection.channel.write(buffer) > 0)
+					connection.lastTransferNanos = System.nanoTime();
+				sent = !buffer.hasRemaining();
+			}
+
+			if (!sent)
+				return;
+			connection.output.removeFirst();
+		}
+	}
+
+	/**
+	 * Hands the {@link #subscribed} connections over to {@link MonitorPushStream}s, which use blocking I/O from their
+	 * own thread.
+	 */
+	private void startPushStreams(Selector selector) throws IOException {
+		for (SelectionKey key : subscribed) {
+			key.cancel();
+		}
+		// Deregisters the channels, which cannot be switched to blocking mode while registered
+		selector.selectNow();
+
+		for (SelectionKey key : subscribed) {
+			Connection connection = (Connection) key.attachment();
+			SocketChannel channel = connection.channel;
+			try {
+				channel.configureBlocking(true);
+				DataOutputStream output = new DataOutputStream(channel.socket().getOutputStream());
+				new MonitorPushStream<>(server, channel.socket(), output, connection.compression).start();
+			} catch (IOException e) {
+				Log.v(MonitorConstants.Companion.getTag_run(), String.format("Connection closed: %s / port:%d", e.getMessage(), server.port));
+				server.endSubscription();
+				try {
+					channel.close();
+				} catch (IOException closeError) {
+					// Nothing to do
+				}
+			}
+		}
+		subscribed.clear();
+	}
+
+	private void closeIdleConnections(Selector selector) {
+		long now = System.nanoTime();
+		long idleTimeoutNanos = server.idleTimeoutMs * 1000000L;
+
+		List<SelectionKey> idle = new ArrayList<>();
+		for (SelectionKey key : selector.keys()) {
+			if (!(key.attachment() instanceof Connection))
+				continue;
+
+			// Connections waiting for a response are not idle
+			Connection connection = (Connection) key.attachment();
+			if (!connection.answering && now - connection.lastTransferNanos >= idleTimeoutNanos)
+				idle.add(key);
+		}
+
+		for (SelectionKey key : idle) {
+			Log.v(MonitorConstants.Companion.getTag_run(), String.format("Idle connection closed / port:%d", server.port));
+			close(key);
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		Connection connection = (Connection) key.attachment();
+		releaseRegions(connection.output);
+		connection.output.clear();
+		// Closed before being handed over to its push stream
+		if (connection.subscribeAfterWrite)
+			server.endSubscription();
+		connection.subscribeAfterWrite = false;
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Releases the {@link FileRegion}s of responses which will not be sent
+	 */
+	private static void releaseRegions(List<Object> output) {
+		for (Object next : output) {
+			if (next instanceof FileRegion)
+				((FileRegion) next).release();
+		}
+	}
+}
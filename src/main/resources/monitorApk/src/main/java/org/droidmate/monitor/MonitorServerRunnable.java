@@ -3,13 +3,14 @@ package org.droidmate.monitor;
 import android.util.Log;
 import org.droidmate.misc.MonitorConstants;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 class MonitorServerRunnable<ServerInputT extends Serializable, ServerOutputT extends Serializable> implements Runnable {
@@ -20,39 +21,20 @@ class MonitorServerRunnable<ServerInputT extends Serializable, ServerOutputT ext
 	}
 
 	public void run() {
+		MonitorGuard.markMonitorThread();
 
 		Log.v(MonitorConstants.Companion.getTag_run(), String.format("run(): entering port:%d", server.port));
 		try {
-
-			// Synchronize to ensure the parent thread (the one which started this one) will continue only after one of these two
-			// is true:
-			// - serverSocket was successfully initialized
-			// - exception was thrown and assigned to a field and  this thread exited
-			synchronized (this) {
-				try {
-					Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverSocket = new ServerSocket(%d)", server.port));
-					server.serverSocket = new ServerSocket(server.port);
-					Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverSocket = new ServerSocket(%d): SUCCESS", server.port));
-				} catch (SocketException e) {
-					server.serverSocketException = e;
-				}
-
-				if (server.serverSocketException != null) {
-					Log.d(MonitorConstants.Companion.getTag_run(), "serverSocket = new ServerSocket(" + server.port + "): FAILURE " +
-							"aborting further thread execution.");
-					this.notify();
-					return;
-				} else {
-					this.notify();
-				}
-			}
-
-			if (server.serverSocket == null) {
-				throw new AssertionError();
-			}
-
-			if (server.serverSocketException != null) {
-				throw new AssertionError();
+			try {
+				Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverSocket = new ServerSocket(%d)", server.port));
+				ServerSocket serverSocket = new ServerSocket(server.port);
+				Log.v(MonitorConstants.Companion.getTag_run(), String.format("serverSocket = new ServerSocket(%d): SUCCESS", server.port));
+				server.onStarted(serverSocket, null);
+			} catch (IOException e) {
+				Log.d(MonitorConstants.Companion.getTag_run(), "serverSocket = new ServerSocket(" + server.port + "): FAILURE " +
+						"aborting further thread execution.");
+				server.onStarted(null, e);
+				return;
 			}
 
 			while (!server.serverSocket.isClosed()) {
@@ -74,32 +56,98 @@ class MonitorServerRunnable<ServerInputT extends Serializable, ServerOutputT ext
 				 */
 				////output.flush();
 
-				DataInputStream input = new DataInputStream(clientSocket.getInputStream());
-				ServerInputT serverInput;
-
-				try {
-					@SuppressWarnings("unchecked")
-					// Without this var here, there is no place to put the "unchecked" suppression warning.
-							ServerInputT localVarForSuppressionAnnotation = (ServerInputT) SerializationHelper.readObjectFromStream(input);
-					serverInput = localVarForSuppressionAnnotation;
-
-				} catch (Exception e) {
-					Log.e(MonitorConstants.Companion.getTag_run(), "! serverInput = input.readObject(): FAILURE " +
-							"while reading from clientSocket on port " + server.port + ". Closing server socket.", e);
-					server.closeServerSocket();
-					break;
-				}
-
-				ServerOutputT serverOutput;
-				Log.d(MonitorConstants.Companion.getTag_run(), String.format("OnServerRequest(%s) / port:%d", serverInput, server.port));
-				serverOutput = server.OnServerRequest(serverInput);
-				SerializationHelper.writeObjectToStream(output, serverOutput);
-				clientSocket.close();
-
-				if (server.shouldCloseServerSocket(serverInput)) {
-					Log.v(MonitorConstants.Companion.getTag_run(), String.format("shouldCloseServerSocket(): true / port:%d", server.port));
-					server.closeServerSocket();
-				}
+				BufferedInputStream bufferedInput = new BufferedInputStream(clientSocket.getInputStream());
+				DataInputStream input = new DataInputStream(bufferedInput);
+				boolean keepAlive = false;
+
+				// Hosts using the binary protocol may keep the connection open and send further (pipelined) requests,
+				// they are answered in order until the host closes the connection
+				do {
+					ServerInputT serverInput;
+					boolean wireProtocol;
+					WireCompression compression = null;
+
+					try {
+						// Hosts which support it use the binary protocol, older ones use Java serialization
+						wireProtocol = WireProtocol.isWireFrame(bufferedInput);
+
+						if (wireProtocol) {
+							WireProtocol.Request request = WireProtocol.readRequest(input);
+							keepAlive = request.isKeepAlive();
+							if (request.acceptsDeflate())
+								compression = server.compression;
+
+							@SuppressWarnings("unchecked")
+							// Without this var here, there is no place to put the "unchecked" suppression warning.
+									ServerInputT localVarForSuppressionAnnotation = (ServerInputT) request.command;
+							serverInput = localVarForSuppressionAnnotation;
+						} else {
+							keepAlive = false;
+
+							@SuppressWarnings("unchecked")
+							// Without this var here, there is no place to put the "unchecked" suppression warning.
+									ServerInputT localVarForSuppressionAnnotation = (ServerInputT) SerializationHelper.readObjectFromStream(input);
+							serverInput = localVarForSuppressionAnnotation;
+						}
+
+					} catch (Exception e) {
+						if (keepAlive && (e instanceof EOFException || e instanceof SocketTimeoutException)) {
+							Log.v(MonitorConstants.Companion.getTag_run(), String.format("Persistent connection closed or idle / port:%d", server.port));
+							break;
+						}
+
+						Log.e(MonitorConstants.Companion.getTag_run(), "! serverInput = input.readObject(): FAILURE " +
+								"while reading from clientSocket on port " + server.port + ". Closing server socket.", e);
+						server.closeServerSocket();
+						break;
+					}
+
+					// Persistent connections without requests are closed, so that an unresponsive host does not block
+					// the server forever
+					if (keepAlive)
+						clientSocket.setSoTimeout(server.idleTimeoutMs);
+
+					ServerOutputT serverOutput;
+					boolean subscribe = false;
+					Log.d(MonitorConstants.Companion.getTag_run(), String.format("OnServerRequest(%s) / port:%d", serverInput, server.port));
+					if (server.isSubscriptionRequest(serverInput)) {
+						// Only connections of the binary protocol can be switched to push mode
+						subscribe = wireProtocol && server.trySubscribe();
+						serverOutput = server.getSubscriptionAnswer(subscribe);
+					} else
+						serverOutput = server.OnServerRequest(serverInput);
+					try {
+						if (wireProtocol)
+							WireProtocol.writeResponse(output, serverOutput, 0, compression);
+						else
+							SerializationHelper.writeObjectToStream(output, serverOutput);
+					} catch (IOException e) {
+						// The host went away, the server continues accepting connections
+						Log.e(MonitorConstants.Companion.getTag_run(), String.format("! Failed to send response / port:%d", server.port), e);
+						keepAlive = false;
+						if (subscribe)
+							server.endSubscription();
+						subscribe = false;
+					} finally {
+						if (serverOutput instanceof FileRegion)
+							((FileRegion) serverOutput).release();
+					}
+
+					if (server.shouldCloseServerSocket(serverInput)) {
+						Log.v(MonitorConstants.Companion.getTag_run(), String.format("shouldCloseServerSocket(): true / port:%d", server.port));
+						server.closeServerSocket();
+						keepAlive = false;
+					} else if (subscribe) {
+						// From now on the connection only receives pushed data, from its own thread
+						clientSocket.setSoTimeout(0);
+						new MonitorPushStream<>(server, clientSocket, output, compression).start();
+						clientSocket = null;
+						keepAlive = false;
+					}
+				} while (keepAlive);
+
+				if (clientSocket != null)
+					clientSocket.close();
 			}
 
 			if (!server.serverSocket.isClosed()) {
@@ -4,35 +4,142 @@ import android.content.Context;
 import android.util.Log;
 import org.droidmate.misc.MonitorConstants;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-class MonitorTcpServer extends TcpServerBase<String, LinkedList<ArrayList<String>>> {
+class MonitorTcpServer extends TcpServerBase<String, Serializable> {
+	/**
+	 * Forces the monitor to re-read the API policies file, instead of waiting for the change to be detected.
+	 * Answers with the number of policies loaded.
+	 */
+	static final String srvCmd_reload_policies = "reloadPolicies";
+	/**
+	 * Requests statistics about the monitored APIs. Answers with one entry per API which had logs dropped or skipped:
+	 * [API policy key, number of logs dropped because the log buffer was full, number of calls not logged because of
+	 * sampling or rate limiting, see {@link ApiSampler}]
+	 */
+	static final String srvCmd_get_api_stats = "getApiStats";
+	/**
+	 * Requests the number of calls of each API counted by a monitor compiled with {@code MonitorMode.CountersOnly}.
+	 * Answers with one entry per API called since the monitor started: [API policy key, number of calls, time of the
+	 * first call, time of the last call]. Counters are not reset.
+	 */
+	static final String srvCmd_get_api_counters = "getApiCounters";
+	/**
+	 * Requests the call sites aggregated by a monitor configured with {@link MonitorConfig#LOGS_AGGREGATE}. Answers with
+	 * one entry per site called since the last request: [process ID, timestamp of the first call, payload of the first
+	 * call, number of calls, timestamp of the last call]. The number of calls is the total since the monitor started.
+	 * Answers with an empty list if logs are not aggregated.
+	 */
+	static final String srvCmd_get_call_sites = "getCallSites";
+	/**
+	 * Requests the text of the stack frames referenced by id in the logs, when the monitor is configured to use
+	 * {@link StackTraceMode#Interned}. Answers with one entry per frame not sent before: [frame id, frame]
+	 */
+	static final String srvCmd_get_stack_frames = "getStackFrames";
+	/**
+	 * Requests the structured records captured by a monitor compiled with {@code MonitorMode.Structured}. Answers with
+	 * a byte array, see {@link ApiRecordEncoder} for its layout.
+	 */
+	static final String srvCmd_get_records = "getRecords";
+	/**
+	 * <p>
+	 * Requests the next chunk of logs, limited to {@link MonitorConfig#LOGS_CHUNK_SIZE} entries. May be followed by
+	 * {@code ":<sequence number>"} to acknowledge the previous chunk.
+	 *
+	 * </p><p>
+	 * Answers with a header [sequence number of the chunk, "1" if the chunk is full, so more logs may be available, or "0"
+	 * otherwise], followed by
+	 * the logs in the same format as {@code srvCmd_get_logs}. Logs are only discarded by the monitor once their chunk is
+	 * acknowledged; until then, the same chunk is sent again, e.g. after the connection was lost during the transfer.
+	 * </p>
+	 */
+	static final String srvCmd_get_logs_chunk = "getLogsChunk";
+	/**
+	 * <p>
+	 * Requests the next range of the {@link MappedLogStore}, when the monitor is configured to use
+	 * {@link LogStoreMode#MappedFile} or {@link LogStoreMode#Journal}. May be followed by {@code ":<end offset>"} to
+	 * acknowledge the previous range.
+	 *
+	 * </p><p>
+	 * Answers with the bytes of the range: varint start offset, varint end offset, then the records in the store's format.
+	 * The records are sent from the file without being decoded. Until acknowledged, the same range is sent again. Answers
+	 * with an empty list if the monitor does not use a store.
+	 * </p>
+	 */
+	static final String srvCmd_get_log_store = "getLogStore";
+	/**
+	 * <p>
+	 * Switches the connection into push mode: the logs are sent as they are captured, in the same format as
+	 * {@code srvCmd_get_logs}, batched by {@link MonitorConfig#PUSH_BATCH_SIZE} and
+	 * {@link MonitorConfig#PUSH_BATCH_INTERVAL_MS}, see {@link MonitorPushStream}.
+	 *
+	 * </p><p>
+	 * Answers with ["1"] if the subscription was accepted, or ["0"] if another connection is already subscribed or if the
+	 * request was sent with Java serialization, whose connections cannot be switched to push mode. Logs
+	 * pushed to a connection which is lost are not sent again, use {@code srvCmd_get_logs_chunk} when all logs are needed.
+	 *
+	 * </p><p>
+	 * The host does not send anything after subscribing. A host which disconnected is noticed when writing to it, so an
+	 * empty batch is pushed after {@link MonitorConfig#PUSH_HEARTBEAT_INTERVAL_MS} without logs; the subscription is then
+	 * released for other connections.
+	 *
+	 * </p><p>
+	 * Subscribing does not stop other connections from requesting logs: logs taken by {@code srvCmd_get_logs} or
+	 * {@code srvCmd_get_logs_chunk} meanwhile are not pushed.
+	 * </p>
+	 */
+	static final String srvCmd_subscribe = "subscribe";
+	/**
+	 * Requests the version of the {@link WireProtocol} supported by the monitor. Answers with [version]. Monitors which do
+	 * not support it answer with an empty list, as for any unknown command.
+	 */
+	static final String srvCmd_wire_version = "wireVersion";
+
+	private static final long PUSH_POLL_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(5);
 
 	private final Object mLock = new Object();
+	private final boolean validateLogs = Monitor.config.getBoolean(MonitorConfig.DEBUG_VALIDATE_LOGS, false);
+
+	private final int chunkSize = Math.max(1, Monitor.config.getInt(MonitorConfig.LOGS_CHUNK_SIZE, 1000));
+	private long nextChunkSequence = 1;
+	/**
+	 * Chunk sent but not acknowledged yet, null if none
+	 */
+	private LinkedList<ArrayList<String>> pendingChunk = null;
+	private long pendingChunkSequence = 0;
+
+	private final int pushBatchSize = Math.max(1, Monitor.config.getInt(MonitorConfig.PUSH_BATCH_SIZE, 500));
+	private final long pushBatchIntervalNs = TimeUnit.MILLISECONDS.toNanos(
+			Math.max(1, Monitor.config.getInt(MonitorConfig.PUSH_BATCH_INTERVAL_MS, 100)));
+	private final long pushHeartbeatIntervalNs = TimeUnit.MILLISECONDS.toNanos(
+			Math.max(1, Monitor.config.getInt(MonitorConfig.PUSH_HEARTBEAT_INTERVAL_MS, 5000)));
 
 	Context context;
 
 	MonitorTcpServer() {
-		super();
+		super(Monitor.config.getEnum(MonitorConfig.SERVER_MODE, ServerMode.class, ServerMode.Blocking),
+				Math.max(1, Monitor.config.getInt(MonitorConfig.SERVER_IDLE_TIMEOUT_MS, 60 * 1000)),
+				new WireCompression(Monitor.deflateDictionary, Monitor.config.getInt(MonitorConfig.WIRE_DEFLATE_MIN_BYTES, 1024)));
 	}
 
 	@Override
-	protected LinkedList<ArrayList<String>> OnServerRequest(String input) {
+	protected Serializable OnServerRequest(String input) {
 		synchronized (mLock) {
-			validateLogsAreNotFromMonitor();
-
 			if (MonitorConstants.Companion.getSrvCmd_connCheck().equals(input)) {
 				final ArrayList<String> payload = new ArrayList<>(Arrays.asList(Monitor.getPid(), getPackageName(), ""));
 				return new LinkedList<>(Collections.singletonList(payload));
 
 			} else if (MonitorConstants.Companion.getSrvCmd_get_logs().equals(input)) {
-				LinkedList<ArrayList<String>> logsToSend = new LinkedList<>(Monitor.currentLogs);
-				Monitor.currentLogs.clear();
-
-				return logsToSend;
+				return drainLogs();
 
 			} else if (MonitorConstants.Companion.getSrvCmd_get_time().equals(input)) {
 				final String time = Monitor.getNowDate();
@@ -42,6 +149,43 @@ class MonitorTcpServer extends TcpServerBase<String, LinkedList<ArrayList<String
 				Log.d(MonitorConstants.Companion.getTag_srv(), "getTime: " + time);
 				return new LinkedList<>(Collections.singletonList(payload));
 
+			} else if (srvCmd_reload_policies.equals(input)) {
+				final String count = String.valueOf(Monitor.reloadPolicies());
+
+				final ArrayList<String> payload = new ArrayList<>(Arrays.asList(count, null, null));
+
+				Log.d(MonitorConstants.Companion.getTag_srv(), "reloadPolicies: " + count);
+				return new LinkedList<>(Collections.singletonList(payload));
+
+			} else if (srvCmd_get_api_stats.equals(input)) {
+				return getApiStats();
+
+			} else if (srvCmd_get_api_counters.equals(input)) {
+				return getApiCounters();
+
+			} else if (srvCmd_get_call_sites.equals(input)) {
+				return getCallSites();
+
+			} else if (input != null && input.startsWith(srvCmd_get_log_store)) {
+				return getLogStoreRegion(input.substring(srvCmd_get_log_store.length()));
+
+			} else if (input != null && input.startsWith(srvCmd_get_logs_chunk)) {
+				return getLogsChunk(input.substring(srvCmd_get_logs_chunk.length()));
+
+			} else if (srvCmd_wire_version.equals(input)) {
+				final ArrayList<String> payload = new ArrayList<>(Collections.singletonList(String.valueOf(WireProtocol.VERSION)));
+				return new LinkedList<>(Collections.singletonList(payload));
+
+			} else if (srvCmd_get_records.equals(input)) {
+				return drainRecords();
+
+			} else if (srvCmd_get_stack_frames.equals(input)) {
+				LinkedList<ArrayList<String>> frames = new LinkedList<>();
+				for (String[] frame : Monitor.stackFrames.drainNewFrames()) {
+					frames.add(new ArrayList<>(Arrays.asList(frame)));
+				}
+				return frames;
+
 			} else if (MonitorConstants.Companion.getSrvCmd_close().equals(input)) {
 				// In addition to the logic above, this command is handled in
 				// org.droidmate.monitor.MonitorJavaTemplate.MonitorTcpServer.shouldCloseServerSocket
@@ -55,6 +199,166 @@ class MonitorTcpServer extends TcpServerBase<String, LinkedList<ArrayList<String
 		}
 	}
 
+	/**
+	 * Removes the logs captured so far from the monitor and converts them into the format expected by the host machine.
+	 * See {@link Monitor#currentLogs} for the format.
+	 *
+	 * When logs are aggregated per call site, there is one entry per site first called since the last request, for its
+	 * first call. The number of calls per site is requested with {@link #srvCmd_get_call_sites}.
+	 */
+	private LinkedList<ArrayList<String>> drainLogs() {
+		LinkedList<ArrayList<String>> logsToSend = drainLogs(Integer.MAX_VALUE);
+
+		validateLogsAreNotFromMonitor(logsToSend);
+		return logsToSend;
+	}
+
+	private LinkedList<ArrayList<String>> drainLogs(int maxLogs) {
+		final String pid = Monitor.getPid();
+		LinkedList<ArrayList<String>> logsToSend = new LinkedList<>();
+
+		if (Monitor.callSites == null) {
+			for (ApiLogEvent event : Monitor.currentLogs.drain(maxLogs)) {
+				logsToSend.add(new ArrayList<>(Arrays.asList(pid, Monitor.formatEpochNanos(event.epochNanos), event.getPayload())));
+			}
+		} else {
+			for (CallSiteAggregator.Aggregate site : Monitor.callSites.drainNew(maxLogs)) {
+				logsToSend.add(new ArrayList<>(Arrays.asList(pid, Monitor.formatEpochNanos(site.first.epochNanos), site.first.payload)));
+			}
+		}
+
+		return logsToSend;
+	}
+
+	/**
+	 * @see #srvCmd_get_call_sites
+	 */
+	private LinkedList<ArrayList<String>> getCallSites() {
+		LinkedList<ArrayList<String>> sites = new LinkedList<>();
+		if (Monitor.callSites == null)
+			return sites;
+
+		final String pid = Monitor.getPid();
+		for (CallSiteAggregator.Aggregate site : Monitor.callSites.drainChanged()) {
+			sites.add(new ArrayList<>(Arrays.asList(pid, Monitor.formatEpochNanos(site.first.epochNanos), site.first.payload,
+					String.valueOf(site.getCount()), Monitor.formatEpochNanos(site.getLastEpochNanos()))));
+		}
+
+		validateLogsAreNotFromMonitor(sites);
+		return sites;
+	}
+
+	/**
+	 * @param ack Empty, or ":" followed by the sequence number of the chunk being acknowledged
+	 * @see #srvCmd_get_logs_chunk
+	 */
+	private LinkedList<ArrayList<String>> getLogsChunk(String ack) {
+		if (ack.startsWith(":") && pendingChunk != null) {
+			try {
+				if (Long.parseLong(ack.substring(1).trim()) == pendingChunkSequence)
+					pendingChunk = null;
+			} catch (NumberFormatException e) {
+				Log.e(MonitorConstants.Companion.getTag_srv(), "! Invalid chunk acknowledgement: " + ack);
+			}
+		}
+
+		if (pendingChunk == null) {
+			LinkedList<ArrayList<String>> logs = drainLogs(chunkSize);
+			validateLogsAreNotFromMonitor(logs);
+
+			pendingChunk = logs;
+			pendingChunkSequence = nextChunkSequence++;
+		}
+
+		LinkedList<ArrayList<String>> response = new LinkedList<>(pendingChunk);
+		String hasMore = (pendingChunk.size() >= chunkSize) ? "1" : "0";
+		response.addFirst(new ArrayList<>(Arrays.asList(String.valueOf(pendingChunkSequence), hasMore)));
+		return response;
+	}
+
+	/**
+	 * @param ack Empty, or ":" followed by the end offset of the range being acknowledged
+	 * @see #srvCmd_get_log_store
+	 */
+	private Serializable getLogStoreRegion(String ack) {
+		long ackOffset = -1;
+		if (ack.startsWith(":")) {
+			try {
+				ackOffset = Long.parseLong(ack.substring(1).trim());
+			} catch (NumberFormatException e) {
+				Log.e(MonitorConstants.Companion.getTag_srv(), "! Invalid log store acknowledgement: " + ack);
+			}
+		}
+
+		FileRegion region = Monitor.currentLogs.nextStoreRegion(ackOffset);
+		return (region != null) ? region : new LinkedList<ArrayList<String>>();
+	}
+
+	/**
+	 * Removes the structured records captured so far from the monitor and encodes them, together with the stack traces
+	 * they reference which were not sent yet.
+	 */
+	private byte[] drainRecords() {
+		List<ApiLogEvent> records = new ArrayList<>();
+		for (ApiLogEvent event : Monitor.currentLogs.drain()) {
+			// Text logs are not produced by monitors compiled for structured records
+			if (event.isRecord())
+				records.add(event);
+		}
+
+		// Frames and stacks are drained after the records, so that all those referenced by the records are included
+		List<StackFrameTable.FrameSequence> newStacks = Monitor.stackFrames.drainNewStacks();
+		List<String[]> newFrames = Monitor.stackFrames.drainNewFrames();
+
+		return ApiRecordEncoder.encode(newFrames, newStacks, records);
+	}
+
+	private LinkedList<ArrayList<String>> getApiStats() {
+		LinkedList<ArrayList<String>> stats = new LinkedList<>();
+
+		Map<String, Long> dropped = new HashMap<>(Monitor.currentLogs.getDropCounters());
+
+		for (int apiId = 0; apiId < Monitor.apis.size(); apiId++) {
+			String api = Monitor.apis.getKey(apiId);
+			Long droppedCount = dropped.remove(api);
+			long skippedCount = Monitor.sampler.getSkipped(apiId);
+
+			if (droppedCount != null || skippedCount > 0) {
+				String droppedText = String.valueOf((droppedCount != null) ? droppedCount : 0);
+				stats.add(new ArrayList<>(Arrays.asList(api, droppedText, String.valueOf(skippedCount))));
+			}
+		}
+
+		// APIs which are not in the table
+		for (Map.Entry<String, Long> entry : dropped.entrySet()) {
+			stats.add(new ArrayList<>(Arrays.asList(entry.getKey(), String.valueOf(entry.getValue()), "0")));
+		}
+
+		return stats;
+	}
+
+	private LinkedList<ArrayList<String>> getApiCounters() {
+		LinkedList<ArrayList<String>> counters = new LinkedList<>();
+		ApiCallCounters callCounters = Monitor.callCounters;
+
+		for (int apiId = 0; apiId < callCounters.size(); apiId++) {
+			long count = callCounters.getCount(apiId);
+			if (count == 0)
+				continue;
+
+			// The first call may still be being counted by another thread, in this case both times are the same
+			long last = callCounters.getLastEpochNanos(apiId);
+			long first = callCounters.getFirstEpochNanos(apiId);
+			if (first == 0 || last == 0)
+				first = last = Math.max(first, last);
+
+			counters.add(new ArrayList<>(Arrays.asList(Monitor.apis.getKey(apiId), String.valueOf(count),
+					Monitor.formatEpochNanos(first), Monitor.formatEpochNanos(last))));
+		}
+
+		return counters;
+	}
+
 	private String getPackageName() {
 		if (this.context != null)
 			return this.context.getPackageName();
@@ -66,11 +370,17 @@ class MonitorTcpServer extends TcpServerBase<String, LinkedList<ArrayList<String
 	 * <p>
 	 * This method ensures the logs do not come from messages logged by the MonitorTcpServer or
 	 * MonitorJavaTemplate itself. This would be a bug and thus it will cause an assertion failure in this method.
-	 * <p>
+	 *
+	 * </p><p>
+	 * Calls made by the monitor are not logged in the first place, see {@link MonitorGuard}. As this check searches every
+	 * payload, it only runs when enabled by {@link MonitorConfig#DEBUG_VALIDATE_LOGS}.
 	 * </p>
 	 */
-	private void validateLogsAreNotFromMonitor() {
-		for (ArrayList<String> log : Monitor.currentLogs) {
+	private void validateLogsAreNotFromMonitor(LinkedList<ArrayList<String>> logs) {
+		if (!validateLogs)
+			return;
+
+		for (ArrayList<String> log : logs) {
 			// ".get(2)" gets the payload. For details, see the doc of the param passed to this method.
 			String msgPayload = log.get(2);
 			failOnLogsFromMonitorTCPServerOrMonitorJavaTemplate(msgPayload);
@@ -85,6 +395,54 @@ class MonitorTcpServer extends TcpServerBase<String, LinkedList<ArrayList<String
 							MonitorConstants.Companion.getTag_srv() + " or " + MonitorConstants.Companion.getTag_mjt() + ". The message payload: " + msgPayload);
 	}
 
+	@Override
+	protected boolean isSubscriptionRequest(String serverInput) {
+		return srvCmd_subscribe.equals(serverInput);
+	}
+
+	@Override
+	protected Serializable getSubscriptionAnswer(boolean accepted) {
+		final ArrayList<String> payload = new ArrayList<>(Collections.singletonList(accepted ? "1" : "0"));
+		return new LinkedList<>(Collections.singletonList(payload));
+	}
+
+	/**
+	 * Waits until {@link #pushBatchSize} logs are available or the oldest of them waited {@link #pushBatchIntervalNs},
+	 * then removes them from the monitor. Returns an empty batch after {@link #pushHeartbeatIntervalNs} without logs.
+	 */
+	@Override
+	protected Serializable awaitPushBatch() throws InterruptedException {
+		long waitStart = System.nanoTime();
+		long batchStart = waitStart;
+
+		while (isSubscribed() && !serverSocket.isClosed()) {
+			// Aggregated logs are not counted, they are pushed on the interval only
+			boolean full = (Monitor.callSites == null) && (Monitor.currentLogs.size() >= pushBatchSize);
+
+			if (full || System.nanoTime() - batchStart >= pushBatchIntervalNs) {
+				LinkedList<ArrayList<String>> logs;
+				synchronized (mLock) {
+					logs = drainLogs(pushBatchSize);
+				}
+
+				if (!logs.isEmpty()) {
+					validateLogsAreNotFromMonitor(logs);
+					return logs;
+				}
+
+				batchStart = System.nanoTime();
+				if (batchStart - waitStart >= pushHeartbeatIntervalNs)
+					return logs;
+			}
+
+			LockSupport.parkNanos(Math.min(pushBatchIntervalNs, PUSH_POLL_INTERVAL_NS));
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+
+		return null;
+	}
+
 	@Override
 	protected boolean shouldCloseServerSocket(String serverInput) {
 		return MonitorConstants.Companion.getSrvCmd_close().equals(serverInput);
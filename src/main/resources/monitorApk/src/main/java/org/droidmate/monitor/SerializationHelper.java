@@ -1,7 +1,11 @@
 package org.droidmate.monitor;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
+/**
+ * Java serialization of the TCP server's requests and responses, used with hosts which do not support {@link WireProtocol}.
+ */
 class SerializationHelper {
 
 	static void writeObjectToStream(DataOutputStream outputStream, Object toWrite) throws IOException {
@@ -13,4 +17,40 @@ class SerializationHelper {
 	static Object readObjectFromStream(DataInputStream inputStream) throws IOException, ClassNotFoundException {
 		return new ObjectInputStream(inputStream).readObject();
 	}
+
+	/**
+	 * Tells, without deserializing it, if {@code buffer} starts with a complete serialization stream of a string, as
+	 * written by {@link #writeObjectToStream(DataOutputStream, Object)} for the requests of the host. The position of
+	 * {@code buffer} is left unchanged.
+	 *
+	 * @return Length of the stream, or -1 if it was not completely received yet
+	 * @throws IOException if the bytes are not a serialized string
+	 */
+	static int getSerializedStringLength(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int available = buffer.remaining();
+
+		// Stream header, then the type of the object
+		if (available < 5)
+			return -1;
+		if (buffer.getShort(start) != ObjectStreamConstants.STREAM_MAGIC || buffer.getShort(start + 2) != ObjectStreamConstants.STREAM_VERSION)
+			throw new StreamCorruptedException("Invalid stream header");
+
+		long length;
+		byte type = buffer.get(start + 4);
+		if (type == ObjectStreamConstants.TC_STRING) {
+			if (available < 7)
+				return -1;
+			length = 7 + (buffer.getShort(start + 5) & 0xFFFF);
+		} else if (type == ObjectStreamConstants.TC_LONGSTRING) {
+			if (available < 13)
+				return -1;
+			length = 13 + buffer.getLong(start + 5);
+		} else
+			throw new StreamCorruptedException("Not a string: " + type);
+
+		if (length < 0 || length > Integer.MAX_VALUE)
+			throw new StreamCorruptedException("Invalid string length");
+		return (available >= length) ? (int) length : -1;
+	}
 }
\ No newline at end of file
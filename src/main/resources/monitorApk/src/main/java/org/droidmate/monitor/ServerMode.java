@@ -0,0 +1,15 @@
+package org.droidmate.monitor;
+
+/**
+ * How the monitor TCP server handles connections.
+ */
+enum ServerMode {
+	/**
+	 * One connection at a time, with blocking I/O, see {@link MonitorServerRunnable}
+	 */
+	Blocking,
+	/**
+	 * All connections concurrently, with non-blocking I/O, see {@link MonitorSelectorServerRunnable}
+	 */
+	Selector
+}
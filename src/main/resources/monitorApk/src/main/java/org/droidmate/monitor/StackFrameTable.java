@@ -0,0 +1,116 @@
+package org.droidmate.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Assigns a numeric id to each distinct stack frame, so that stack traces can be logged as short id sequences
+ * ({@link StackTraceMode#Interned}) and each frame is converted to text only once.
+ *
+ * </p><p>
+ * The text of frames seen for the first time is kept until the host machine requests it, see {@link #drainNewFrames()}.
+ *
+ * </p><p>
+ * Whole stack traces can also be interned, as sequences of frame ids, see {@link #internStack(int[])}.
+ * </p>
+ */
+class StackFrameTable {
+	private final ConcurrentHashMap<StackTraceElement, Integer> ids = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<String[]> newFrames = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nextId = new AtomicInteger(0);
+
+	private final ConcurrentHashMap<FrameSequence, Integer> stackIds = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<FrameSequence> newStacks = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nextStackId = new AtomicInteger(0);
+
+	/**
+	 * Ids of the frames of a stack trace, from the top.
+	 */
+	static final class FrameSequence {
+		final int[] frameIds;
+		private final int hash;
+		private int id = -1;
+
+		private FrameSequence(int[] frameIds) {
+			this.frameIds = frameIds;
+			this.hash = Arrays.hashCode(frameIds);
+		}
+
+		int getId() {
+			return id;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return (other instanceof FrameSequence) && Arrays.equals(((FrameSequence) other).frameIds, this.frameIds);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	int intern(StackTraceElement frame) {
+		Integer id = ids.get(frame);
+		if (id != null)
+			return id;
+
+		int newId = nextId.getAndIncrement();
+		id = ids.putIfAbsent(frame, newId);
+		if (id != null) // Another thread interned it first, the number newId is simply not used
+			return id;
+
+		newFrames.offer(new String[]{String.valueOf(newId), frame.toString()});
+		return newId;
+	}
+
+	/**
+	 * @param frameIds Ids of the frames, as returned by {@link #intern(StackTraceElement)}
+	 * @return Id of the stack trace
+	 */
+	int internStack(int[] frameIds) {
+		FrameSequence stack = new FrameSequence(frameIds);
+		Integer id = stackIds.get(stack);
+		if (id != null)
+			return id;
+
+		int newId = nextStackId.getAndIncrement();
+		id = stackIds.putIfAbsent(stack, newId);
+		if (id != null) // Another thread interned it first, the number newId is simply not used
+			return id;
+
+		stack.id = newId;
+		newStacks.offer(stack);
+		return newId;
+	}
+
+	/**
+	 * @return All stack traces interned since the last call
+	 */
+	List<FrameSequence> drainNewStacks() {
+		List<FrameSequence> result = new ArrayList<>();
+		FrameSequence stack;
+		while ((stack = newStacks.poll()) != null) {
+			result.add(stack);
+		}
+		return result;
+	}
+
+	/**
+	 * @return [id, frame text] of all frames interned since the last call
+	 */
+	List<String[]> drainNewFrames() {
+		List<String[]> result = new ArrayList<>();
+		String[] frame;
+		while ((frame = newFrames.poll()) != null) {
+			result.add(frame);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,16 @@
+package org.droidmate.monitor;
+
+/**
+ * How the monitor renders the stack trace of each monitored API call.
+ */
+enum StackTraceMode {
+	/**
+	 * Frames of the app, without the monitor's own, as text separated by "->"
+	 */
+	Full,
+	/**
+	 * Frames of the app only, as ids separated by "->". The text of each frame is sent only once, see
+	 * {@link StackFrameTable}
+	 */
+	Interned
+}
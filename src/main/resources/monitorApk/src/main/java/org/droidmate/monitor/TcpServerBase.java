@@ -6,42 +6,105 @@ import org.droidmate.misc.MonitorConstants;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.ServerSocket;
-import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 abstract class TcpServerBase<ServerInputT extends Serializable, ServerOutputT extends Serializable> {
 	private final Object mLock = new Object();
+	final ServerMode mode;
+	/**
+	 * @see MonitorConfig#SERVER_IDLE_TIMEOUT_MS
+	 */
+	final int idleTimeoutMs;
+	/**
+	 * Compression of the responses to hosts which accept it
+	 */
+	final WireCompression compression;
 	int port;
-	ServerSocket serverSocket = null;
-	SocketException serverSocketException = null;
-
-	TcpServerBase() {
+	volatile ServerSocket serverSocket = null;
+	volatile IOException serverSocketException = null;
+	private CountDownLatch started;
+	/**
+	 * Set while a connection is subscribed, see {@link #trySubscribe()}
+	 */
+	private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	TcpServerBase(ServerMode mode, int idleTimeoutMs, WireCompression compression) {
 		super();
+		this.mode = mode;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.compression = compression;
 	}
 
 	protected abstract ServerOutputT OnServerRequest(ServerInputT input);
 
 	protected abstract boolean shouldCloseServerSocket(ServerInputT serverInput);
 
+	/**
+	 * @return If {@code serverInput} asks to switch its connection to push mode, see {@link MonitorPushStream}. Such
+	 * requests are answered by {@link #getSubscriptionAnswer(boolean)} instead of {@link #OnServerRequest(Serializable)}.
+	 */
+	protected boolean isSubscriptionRequest(ServerInputT serverInput) {
+		return false;
+	}
+
+	/**
+	 * @param accepted If the connection is switched to push mode after the answer
+	 */
+	protected ServerOutputT getSubscriptionAnswer(boolean accepted) {
+		return null;
+	}
+
+	/**
+	 * Accepts a subscription if no other connection is subscribed. Only called for requests received with
+	 * {@link WireProtocol}, as other connections cannot be switched to push mode: their subscriptions are refused without
+	 * changing the state of the server.
+	 *
+	 * @return If the subscription was accepted, {@link #endSubscription()} must then be called once the connection ends
+	 */
+	final boolean trySubscribe() {
+		return subscribed.compareAndSet(false, true);
+	}
+
+	final boolean isSubscribed() {
+		return subscribed.get();
+	}
+
+	/**
+	 * Blocks until there is data to push to the subscribed connection.
+	 *
+	 * @return Data to push, possibly empty to check that the connection is still open, or null if the subscription should
+	 * end
+	 */
+	protected ServerOutputT awaitPushBatch() throws InterruptedException {
+		return null;
+	}
+
+	/**
+	 * Called when the subscribed connection ends, for any reason.
+	 */
+	final void endSubscription() {
+		subscribed.set(false);
+	}
+
 	Thread tryStart(int port) throws Exception {
 		Log.v(MonitorConstants.Companion.getTag_srv(), String.format("tryStart(port:%d): entering", port));
 		this.serverSocket = null;
 		this.serverSocketException = null;
 		this.port = port;
 
-		MonitorServerRunnable<ServerInputT, ServerOutputT> monitorServerRunnable = new MonitorServerRunnable<>(this);
-		Thread serverThread = new Thread(monitorServerRunnable);
+		Runnable serverRunnable = (mode == ServerMode.Selector) ?
+				new MonitorSelectorServerRunnable<>(this) : new MonitorServerRunnable<>(this);
+		Thread serverThread = new Thread(serverRunnable);
 		serverThread.setDaemon(true); // ensure termination if the main thread dies
-		// For explanation why this synchronization is necessary, see MonitorServerRunnable.run() method synchronized {} block.
 		synchronized (mLock) {
-			if (!(serverSocket == null && serverSocketException == null)) {
-				throw new AssertionError();
-			}
-
+			started = new CountDownLatch(1);
 			serverThread.start();
-			monitorServerRunnable.wait();
 
-			// Either a serverSocket has been established, or an exception was thrown, but not both.
-			if (serverSocket != null || serverSocketException != null) {
+			// Continue only after the server thread either opened the server socket or failed to, see onStarted()
+			started.await();
+
+			if (serverSocketException != null) {
 				Throwable error = (serverSocketException.getCause() != null) ?
 						serverSocketException.getCause() : serverSocketException;
 				String cause = error.getMessage();
@@ -53,12 +116,25 @@ abstract class TcpServerBase<ServerInputT extends Serializable, ServerOutputT ex
 						"Cause of this exception is %s ", port, cause),
 						error);
 			}
+
+			if (serverSocket == null) {
+				throw new AssertionError();
+			}
 		}
 
 		Log.d(MonitorConstants.Companion.getTag_srv(), "tryStart(port:" + port + "): SUCCESS");
 		return serverThread;
 	}
 
+	/**
+	 * Called by the server thread once, when it either opened the server socket or failed to.
+	 */
+	void onStarted(ServerSocket serverSocket, IOException error) {
+		this.serverSocket = serverSocket;
+		this.serverSocketException = error;
+		started.countDown();
+	}
+
 	void closeServerSocket() {
 		try {
 			serverSocket.close();
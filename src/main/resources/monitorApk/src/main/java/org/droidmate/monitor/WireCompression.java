@@ -0,0 +1,61 @@
+package org.droidmate.monitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Deflate compression of {@link WireProtocol} responses, for hosts which request it with
+ * {@link WireProtocol#FLAG_ACCEPT_DEFLATE}.
+ *
+ * </p><p>
+ * Payloads are compressed as zlib streams with a preset dictionary of the class and method names of the monitored APIs,
+ * generated when the monitor is compiled (see {@code CompressionDictionary} on the host side), as logs mostly repeat
+ * them. Payloads smaller than {@link MonitorConfig#WIRE_DEFLATE_MIN_BYTES} are sent as they are.
+ * </p>
+ */
+class WireCompression {
+	private final byte[] dictionary;
+	private final int minBytes;
+
+	/**
+	 * Compressors are reused by each server thread, as creating one allocates large native buffers
+	 */
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+	};
+
+	WireCompression(String dictionary, int minBytes) {
+		this.dictionary = dictionary.getBytes(StandardCharsets.UTF_8);
+		this.minBytes = minBytes;
+	}
+
+	/**
+	 * @return The compressed payload, or null if it should be sent uncompressed
+	 */
+	byte[] compress(byte[] payload) {
+		if (minBytes < 0 || payload.length < minBytes)
+			return null;
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(payload);
+		deflater.finish();
+
+		byte[] output = new byte[payload.length];
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == output.length)
+				return null; // Not worth it
+
+			size += deflater.deflate(output, size, output.length - size);
+		}
+
+		return Arrays.copyOf(output, size);
+	}
+}
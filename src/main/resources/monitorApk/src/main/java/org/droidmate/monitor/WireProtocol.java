@@ -0,0 +1,315 @@
+package org.droidmate.monitor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Compact binary protocol between the host machine and the monitor TCP server, used instead of Java serialization
+ * (see {@link SerializationHelper}) by hosts which support it.
+ *
+ * </p><p>
+ * Requests and responses are frames:
+ * <pre>
+ * 'D' 'M' (2 bytes), version (1 byte), flags (1 byte), varint payload length, payload</pre>
+ * Request flags: {@link #FLAG_KEEP_ALIVE}, {@link #FLAG_ACCEPT_DEFLATE}. Response flags: {@link #FLAG_PUSH},
+ * {@link #FLAG_DEFLATE}.
+ * The payload of a request is the UTF-8 command. The payload of a response starts with its type:
+ * <pre>
+ * TYPE_TABLE: varint string count, string x count (the string table),
+ *             varint row count, per row: varint column count, varint (string index + 1, 0 for null) x count
+ * TYPE_BYTES: raw bytes, also used for {@link FileRegion}s
+ * TYPE_JAVA:  Java serialized object, for responses of any other type</pre>
+ * Integers and strings are encoded as in {@link BinaryWriter}.
+ *
+ * </p><p>
+ * Java serialization streams always start with 0xACED, so the server detects the protocol of each request from its
+ * first bytes (see {@link #isWireFrame(BufferedInputStream)}) and answers with the same protocol. Hosts learn that the
+ * monitor supports this protocol, and its version, from the answer to {@code MonitorTcpServer.srvCmd_wire_version},
+ * which monitors without it answer with an empty list.
+ * </p>
+ */
+class WireProtocol {
+	static final int VERSION = 1;
+
+	/**
+	 * Set by the host on a request to keep the connection open after the response, for further requests
+	 */
+	static final int FLAG_KEEP_ALIVE = 1;
+	/**
+	 * Set by the monitor on frames pushed to a subscribed connection, which are not answers to a request
+	 */
+	static final int FLAG_PUSH = 2;
+	/**
+	 * Set by the host on a request to allow the monitor to compress the responses on the connection, see
+	 * {@link WireCompression}
+	 */
+	static final int FLAG_ACCEPT_DEFLATE = 4;
+	/**
+	 * Set by the monitor on responses whose payload is compressed, see {@link WireCompression}
+	 */
+	static final int FLAG_DEFLATE = 8;
+
+	static final byte TYPE_TABLE = 1;
+	static final byte TYPE_BYTES = 2;
+	static final byte TYPE_JAVA = 3;
+
+	private static final byte MAGIC_0 = 'D';
+	private static final byte MAGIC_1 = 'M';
+	private static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+	static final class Request {
+		final String command;
+		final int flags;
+
+		private Request(String command, int flags) {
+			this.command = command;
+			this.flags = flags;
+		}
+
+		boolean isKeepAlive() {
+			return (flags & FLAG_KEEP_ALIVE) != 0;
+		}
+
+		boolean acceptsDeflate() {
+			return (flags & FLAG_ACCEPT_DEFLATE) != 0;
+		}
+	}
+
+	/**
+	 * Checks, without consuming them, if the next bytes of the stream start a frame of this protocol.
+	 */
+	static boolean isWireFrame(BufferedInputStream input) throws IOException {
+		input.mark(2);
+		int b0 = input.read();
+		int b1 = input.read();
+		input.reset();
+
+		if (b0 < 0 || b1 < 0)
+			throw new EOFException();
+
+		return b0 == MAGIC_0 && b1 == MAGIC_1;
+	}
+
+	static Request readRequest(DataInputStream input) throws IOException {
+		if (input.readByte() != MAGIC_0 || input.readByte() != MAGIC_1)
+			throw new IOException("Not a monitor protocol frame");
+		// Newer hosts may use a higher version, they must fall back to ours, which is sent in the response
+		input.readUnsignedByte();
+		int flags = input.readUnsignedByte();
+
+		int length = (int) readVarLong(input);
+		if (length < 0 || length > MAX_REQUEST_SIZE)
+			throw new IOException("Invalid request length " + length);
+
+		byte[] payload = new byte[length];
+		input.readFully(payload);
+		return new Request(new String(payload, StandardCharsets.UTF_8), flags);
+	}
+
+	/**
+	 * Reads a request from bytes received so far, for servers which do not block on the connection.
+	 *
+	 * @return The request, or null if it was not completely received yet. In that case the position of {@code buffer}
+	 * is left unchanged.
+	 * @throws IOException if the bytes are not a valid request
+	 */
+	static Request parseRequest(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if (buffer.remaining() < 4)
+			return null;
+
+		if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1)
+			throw new IOException("Not a monitor protocol frame");
+		buffer.get();
+		int flags = buffer.get() & 0xFF;
+
+		long length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (!buffer.hasRemaining()) {
+				buffer.position(start);
+				return null;
+			}
+			if (shift >= 35)
+				throw new IOException("Malformed varint");
+			b = buffer.get();
+			length |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		if (length > MAX_REQUEST_SIZE)
+			throw new IOException("Invalid request length " + length);
+
+		if (buffer.remaining() < length) {
+			buffer.position(start);
+			return null;
+		}
+
+		byte[] payload = new byte[(int) length];
+		buffer.get(payload);
+		return new Request(new String(payload, StandardCharsets.UTF_8), flags);
+	}
+
+	/**
+	 * @return If {@code buffer} starts with the magic bytes of a frame of this protocol. False if less than 2 bytes
+	 * remain, callers must wait for more.
+	 */
+	static boolean isWireFrame(ByteBuffer buffer) {
+		int position = buffer.position();
+		return buffer.remaining() >= 2 && buffer.get(position) == MAGIC_0 && buffer.get(position + 1) == MAGIC_1;
+	}
+
+	/**
+	 * @param compression Compression accepted by the host, or null if none
+	 */
+	static void writeResponse(DataOutputStream output, Serializable response, int flags, WireCompression compression) throws IOException {
+		if (response instanceof FileRegion) {
+			FileRegion region = (FileRegion) response;
+			output.write(encodeRegionHeader(region, flags));
+			output.flush();
+
+			// The output of blocking sockets has no channel, the file is copied through a buffer
+			while (region.hasRemaining())
+				region.transferTo(Channels.newChannel(output));
+		} else
+			output.write(encodeResponse(response, flags, compression));
+
+		output.flush();
+	}
+
+	/**
+	 * @return The beginning of the response frame for {@code region}, up to the range of the file. Regions are not
+	 * compressed.
+	 */
+	static byte[] encodeRegionHeader(FileRegion region, int flags) {
+		BinaryWriter frame = new BinaryWriter(region.header.length + 16);
+		frame.writeByte(MAGIC_0).writeByte(MAGIC_1).writeByte(VERSION).writeByte(flags);
+		frame.writeVarLong(1 + region.size());
+		frame.writeByte(TYPE_BYTES);
+		frame.writeBytes(region.header);
+		return frame.toByteArray();
+	}
+
+	/**
+	 * @param compression Compression accepted by the host, or null if none
+	 * @return The complete response frame
+	 */
+	static byte[] encodeResponse(Serializable response, int flags, WireCompression compression) throws IOException {
+		byte[] payload = encode(response);
+
+		if (compression != null) {
+			byte[] compressed = compression.compress(payload);
+			if (compressed != null) {
+				payload = compressed;
+				flags |= FLAG_DEFLATE;
+			}
+		}
+
+		BinaryWriter frame = new BinaryWriter(payload.length + 16);
+		frame.writeByte(MAGIC_0).writeByte(MAGIC_1).writeByte(VERSION).writeByte(flags);
+		frame.writeVarInt(payload.length);
+		frame.writeBytes(payload);
+		return frame.toByteArray();
+	}
+
+	static byte[] encode(Serializable response) throws IOException {
+		if (response instanceof byte[]) {
+			byte[] bytes = (byte[]) response;
+			return new BinaryWriter(bytes.length + 1).writeByte(TYPE_BYTES).writeBytes(bytes).toByteArray();
+		}
+
+		if (isTable(response))
+			return encodeTable((List<?>) response);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(TYPE_JAVA);
+		ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+		objectOutput.writeObject(response);
+		objectOutput.flush();
+		return bytes.toByteArray();
+	}
+
+	private static boolean isTable(Object response) {
+		if (!(response instanceof List))
+			return false;
+
+		for (Object row : (List<?>) response) {
+			if (!(row instanceof List))
+				return false;
+			for (Object column : (List<?>) row) {
+				if (column != null && !(column instanceof String))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes rows of strings. Each distinct string is written once, rows reference them by index, which pays off as
+	 * the same process ids, API signatures and stack traces appear in many rows.
+	 */
+	private static byte[] encodeTable(List<?> rows) {
+		Map<String, Integer> indexes = new HashMap<>();
+		BinaryWriter strings = new BinaryWriter();
+		BinaryWriter body = new BinaryWriter();
+
+		body.writeVarInt(rows.size());
+		for (Object row : rows) {
+			List<?> columns = (List<?>) row;
+			body.writeVarInt(columns.size());
+
+			for (Object column : columns) {
+				if (column == null) {
+					body.writeVarInt(0);
+					continue;
+				}
+
+				Integer index = indexes.get(column);
+				if (index == null) {
+					index = indexes.size();
+					indexes.put((String) column, index);
+					strings.writeString((String) column);
+				}
+				body.writeVarInt(index + 1);
+			}
+		}
+
+		BinaryWriter writer = new BinaryWriter(1 + 5 + strings.size() + body.size());
+		writer.writeByte(TYPE_TABLE);
+		writer.writeVarInt(indexes.size());
+		writer.writeBytes(strings.toByteArray());
+		writer.writeBytes(body.toByteArray());
+		return writer.toByteArray();
+	}
+
+	private static long readVarLong(InputStream input) throws IOException {
+		long result = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift >= 64)
+				throw new IOException("Malformed varint");
+			b = input.read();
+			if (b < 0)
+				throw new EOFException();
+			result |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return result;
+	}
+}
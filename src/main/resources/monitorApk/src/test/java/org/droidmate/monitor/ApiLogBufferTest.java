@@ -0,0 +1,136 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ApiLogBufferTest {
+	private static final ApiTable APIS = TestConfig.apis(
+			"android.util.Log.d(java.lang.String,java.lang.String)",
+			"android.util.Log.i(java.lang.String,java.lang.String)");
+
+	private static ApiLogEvent event(int apiId, long epochNanos) {
+		return new ApiLogEvent(APIS.getKey(apiId), apiId, Thread.currentThread().getId(), epochNanos, "log " + epochNanos);
+	}
+
+	/**
+	 * Adds the events from a new thread, which then ends.
+	 */
+	private static void addFromOtherThread(final ApiLogBuffer buffer, final ApiLogEvent... events) throws InterruptedException {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (ApiLogEvent event : events)
+					buffer.add(event);
+			}
+		});
+		thread.start();
+		thread.join();
+	}
+
+	private static List<Long> times(List<ApiLogEvent> events) {
+		List<Long> result = new ArrayList<>();
+		for (ApiLogEvent event : events)
+			result.add(event.epochNanos);
+		return result;
+	}
+
+	private static List<Long> times(long... values) {
+		List<Long> result = new ArrayList<>();
+		for (long value : values)
+			result.add(value);
+		return result;
+	}
+
+	@Test
+	public void drainMergesTheQueuesOfAllThreadsByTime() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of(), APIS);
+
+		buffer.add(event(0, 1));
+		addFromOtherThread(buffer, event(1, 2), event(1, 4));
+		buffer.add(event(0, 3));
+
+		assertEquals(4, buffer.size());
+		assertEquals(times(1, 2, 3, 4), times(buffer.drain()));
+		assertEquals(0, buffer.size());
+		assertTrue(buffer.drain().isEmpty());
+	}
+
+	@Test
+	public void chunksAreTakenOldestFirst() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of(), APIS);
+
+		addFromOtherThread(buffer, event(1, 1), event(1, 4), event(1, 5));
+		buffer.add(event(0, 2));
+		buffer.add(event(0, 3));
+
+		assertEquals(times(1, 2), times(buffer.drain(2)));
+		assertEquals(times(3, 4), times(buffer.drain(2)));
+		assertEquals(times(5), times(buffer.drain(2)));
+		assertTrue(buffer.drain(2).isEmpty());
+	}
+
+	@Test
+	public void dropOldestDropsTheOldestEventOfTheCallingThread() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of("logs.capacity=3", "logs.overflow=DropOldest"), APIS);
+
+		addFromOtherThread(buffer, event(1, 1));
+		buffer.add(event(0, 2));
+		buffer.add(event(0, 3));
+		buffer.add(event(0, 4));
+
+		assertEquals(3, buffer.size());
+		assertEquals(times(1, 3, 4), times(buffer.drain()));
+
+		Map<String, Long> drops = buffer.getDropCounters();
+		assertEquals(1, drops.size());
+		assertEquals(Long.valueOf(1), drops.get(APIS.getKey(0)));
+	}
+
+	@Test
+	public void dropOldestDropsFromOtherThreadsWhenTheCallingThreadHasNoEvents() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of("logs.capacity=2", "logs.overflow=DropOldest"), APIS);
+
+		addFromOtherThread(buffer, event(1, 1), event(1, 2));
+		buffer.add(event(0, 3));
+
+		assertEquals(times(2, 3), times(buffer.drain()));
+		assertEquals(Long.valueOf(1), buffer.getDropCounters().get(APIS.getKey(1)));
+	}
+
+	@Test
+	public void dropNewestKeepsTheBufferedEvents() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of("logs.capacity=2", "logs.overflow=DropNewest"), APIS);
+
+		buffer.add(event(0, 1));
+		assertFalse(buffer.dropsNewEvents());
+		buffer.add(event(0, 2));
+		assertTrue(buffer.dropsNewEvents());
+		buffer.add(event(1, 3));
+		buffer.add(event(1, 4));
+
+		assertEquals(times(1, 2), times(buffer.drain()));
+		assertEquals(Long.valueOf(2), buffer.getDropCounters().get(APIS.getKey(1)));
+		assertFalse(buffer.dropsNewEvents());
+	}
+
+	@Test
+	public void dropsOfUnknownApisAreCountedByName() throws Exception {
+		ApiLogBuffer buffer = new ApiLogBuffer(TestConfig.of("logs.capacity=1", "logs.overflow=DropNewest"), APIS);
+
+		buffer.add(event(0, 1));
+		buffer.add(new ApiLogEvent("other.Api.m()", -1, 1, 2, "log"));
+		buffer.countDrop(-1, "other.Api.m()");
+
+		Map<String, Long> drops = buffer.getDropCounters();
+		assertEquals(Long.valueOf(2), drops.get("other.Api.m()"));
+		assertNull(drops.get(APIS.getKey(0)));
+	}
+}
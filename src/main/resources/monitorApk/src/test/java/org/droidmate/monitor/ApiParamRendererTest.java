@@ -0,0 +1,72 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ApiParamRendererTest {
+	private final ApiParamRenderer unlimited = new ApiParamRenderer(0);
+
+	@Test
+	public void rendersValuesAsToString() {
+		assertEquals("null", unlimited.render(null));
+		assertEquals("42", unlimited.render(42));
+		assertEquals("text", unlimited.render("text"));
+		assertEquals("true", unlimited.render(Boolean.TRUE));
+	}
+
+	@Test
+	public void escapesTheEnclosingCharacter() {
+		assertEquals("it\\'s", unlimited.render("it's"));
+	}
+
+	@Test
+	public void rendersArraysAsDeepToString() {
+		Object[] nested = new Object[]{1, new int[]{2, 3}, new String[]{"a", null}, null};
+		assertEquals(Arrays.deepToString(nested), unlimited.render(nested));
+		assertEquals("[]", unlimited.render(new byte[0]));
+	}
+
+	@Test
+	public void rendersArraysContainingThemselves() {
+		Object[] array = new Object[2];
+		array[0] = "a";
+		array[1] = array;
+		assertEquals(Arrays.deepToString(array), unlimited.render(array));
+	}
+
+	@Test
+	public void truncatesValuesLongerThanTheBudget() {
+		ApiParamRenderer renderer = new ApiParamRenderer(5);
+
+		assertEquals("12345", renderer.render("12345"));
+		assertEquals("12345_TRUNCATED_TO_5_CHARS", renderer.render("123456789"));
+		assertEquals("[1, 2_TRUNCATED_TO_5_CHARS", renderer.render(new int[]{1, 2, 3, 4}));
+	}
+
+	@Test
+	public void doesNotWalkLargeArraysToTheEnd() {
+		ApiParamRenderer renderer = new ApiParamRenderer(10);
+		Object[] array = new Object[1000000];
+		Arrays.fill(array, new Object() {
+			@Override
+			public String toString() {
+				throw new AssertionError("Rendered beyond the budget");
+			}
+		});
+		array[0] = "0123456789ABC";
+
+		assertEquals("[012345678_TRUNCATED_TO_10_CHARS", renderer.render(array));
+	}
+
+	@Test
+	public void doesNotLimitWithoutBudget() {
+		char[] chars = new char[10000];
+		Arrays.fill(chars, 'x');
+		String text = new String(chars);
+
+		assertEquals(text, unlimited.render(text));
+	}
+}
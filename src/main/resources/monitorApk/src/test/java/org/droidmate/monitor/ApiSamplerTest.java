@@ -0,0 +1,90 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApiSamplerTest {
+	private static final ApiTable APIS = TestConfig.apis(
+			"android.util.Log.d(java.lang.String,java.lang.String)",
+			"android.util.Log.d(java.lang.String,java.lang.String,java.lang.Throwable)",
+			"android.util.Log.i(java.lang.String,java.lang.String)");
+
+	private static int countLogged(ApiSampler sampler, int apiId, int calls) {
+		int logged = 0;
+		for (int i = 0; i < calls; i++) {
+			if (sampler.shouldLog(apiId))
+				logged++;
+		}
+		return logged;
+	}
+
+	@Test
+	public void logsAllCallsWithoutSettings() throws Exception {
+		ApiSampler sampler = new ApiSampler(TestConfig.of(), APIS);
+
+		assertEquals(100, countLogged(sampler, 0, 100));
+		assertEquals(0, sampler.getSkipped(0));
+		// Unknown ids are never skipped
+		assertTrue(sampler.shouldLog(-1));
+		assertTrue(sampler.shouldLog(APIS.size()));
+	}
+
+	@Test
+	public void logsOneOfEveryNCallsStartingWithTheFirst() throws Exception {
+		ApiSampler sampler = new ApiSampler(TestConfig.of("sampling.android.util.Log.i(java.lang.String,java.lang.String)=3"), APIS);
+
+		assertTrue(sampler.shouldLog(2));
+		assertFalse(sampler.shouldLog(2));
+		assertFalse(sampler.shouldLog(2));
+		assertTrue(sampler.shouldLog(2));
+		assertEquals(2, sampler.getSkipped(2));
+
+		assertEquals(10, countLogged(sampler, 0, 10));
+	}
+
+	@Test
+	public void policyKeyTakesPrecedenceOverMethodNameAndDefault() throws Exception {
+		ApiSampler sampler = new ApiSampler(TestConfig.of(
+				"sampling.default=5",
+				"sampling.android.util.Log.d=2",
+				"sampling.android.util.Log.d(java.lang.String,java.lang.String)=4"), APIS);
+
+		assertEquals(25, countLogged(sampler, 0, 100));
+		assertEquals(50, countLogged(sampler, 1, 100));
+		assertEquals(20, countLogged(sampler, 2, 100));
+		assertEquals(75, sampler.getSkipped(0));
+	}
+
+	@Test
+	public void invalidSettingsAreIgnored() throws Exception {
+		ApiSampler sampler = new ApiSampler(TestConfig.of(
+				"sampling.default=often",
+				"ratelimit.default=fast"), APIS);
+
+		assertEquals(100, countLogged(sampler, 0, 100));
+	}
+
+	@Test
+	public void rateLimitAllowsBurstsThenSkips() throws Exception {
+		// One call per hour, so that no token is added while the test runs
+		ApiSampler sampler = new ApiSampler(TestConfig.of("ratelimit.android.util.Log.i=0.0002,3"), APIS);
+
+		assertEquals(3, countLogged(sampler, 2, 10));
+		assertEquals(7, sampler.getSkipped(2));
+		assertEquals(10, countLogged(sampler, 0, 10));
+	}
+
+	@Test
+	public void callsAreSampledBeforeBeingRateLimited() throws Exception {
+		ApiSampler sampler = new ApiSampler(TestConfig.of(
+				"sampling.default=2",
+				"ratelimit.default=0.0002,2"), APIS);
+
+		// Calls 1 and 3 pass the sampling and use the burst, call 5 is rate limited
+		assertEquals(2, countLogged(sampler, 0, 6));
+		assertEquals(4, sampler.getSkipped(0));
+	}
+}
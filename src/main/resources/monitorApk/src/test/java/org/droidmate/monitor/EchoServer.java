@@ -0,0 +1,112 @@
+package org.droidmate.monitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Server for the tests of the TCP servers: answers each command with its text in upper case, after waiting for
+ * {@code "slow:<ms>"} commands. Accepts {@code "subscribe"}, then pushes {@code "PUSH"} every few milliseconds.
+ */
+class EchoServer extends TcpServerBase<String, Serializable> {
+	EchoServer(ServerMode mode) {
+		super(mode, 60 * 1000, null);
+	}
+
+	/**
+	 * Starts a server on a free port
+	 */
+	static EchoServer start(ServerMode mode) throws Exception {
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		EchoServer server = new EchoServer(mode);
+		server.tryStart(port);
+		return server;
+	}
+
+	@Override
+	protected Serializable OnServerRequest(String input) {
+		if (input.startsWith("slow:")) {
+			try {
+				Thread.sleep(Long.parseLong(input.substring(5)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return input.toUpperCase();
+	}
+
+	@Override
+	protected boolean shouldCloseServerSocket(String serverInput) {
+		return "close".equals(serverInput);
+	}
+
+	@Override
+	protected boolean isSubscriptionRequest(String serverInput) {
+		return "subscribe".equals(serverInput);
+	}
+
+	@Override
+	protected Serializable getSubscriptionAnswer(boolean accepted) {
+		return accepted ? "1" : "0";
+	}
+
+	@Override
+	protected Serializable awaitPushBatch() throws InterruptedException {
+		Thread.sleep(10);
+		return serverSocket.isClosed() ? null : "PUSH";
+	}
+
+	Socket connect() throws IOException {
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(10 * 1000);
+		return socket;
+	}
+
+	/**
+	 * Frame of a request of a persistent connection, as written by the host
+	 */
+	static byte[] wireRequest(String command) {
+		byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+		return new BinaryWriter()
+				.writeByte('D').writeByte('M').writeByte(WireProtocol.VERSION).writeByte(WireProtocol.FLAG_KEEP_ALIVE)
+				.writeVarInt(payload.length)
+				.writeBytes(payload)
+				.toByteArray();
+	}
+
+	/**
+	 * Reads a response or pushed frame whose payload was encoded with Java serialization
+	 */
+	static Object readWireResponse(InputStream input) throws Exception {
+		DataInputStream data = new DataInputStream(input);
+		assertEquals('D', data.readByte());
+		assertEquals('M', data.readByte());
+		data.readByte();
+		data.readByte();
+
+		int length = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = data.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		byte[] payload = new byte[length];
+		data.readFully(payload);
+		assertEquals(WireProtocol.TYPE_JAVA, payload[0]);
+		return new ObjectInputStream(new ByteArrayInputStream(payload, 1, length - 1)).readObject();
+	}
+}
@@ -0,0 +1,135 @@
+package org.droidmate.monitor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedLogStoreTest {
+	private static final int SEGMENT_SIZE = 4 * 1024;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("store").toFile();
+		directory.deleteOnExit();
+	}
+
+	private static ApiLogEvent event(long threadId, long sequence) {
+		return new ApiLogEvent("api", 0, threadId, sequence, "log " + threadId + " " + sequence);
+	}
+
+	private static List<ApiLogEvent> drainAll(MappedLogStore store) {
+		List<ApiLogEvent> events = new ArrayList<>();
+		List<ApiLogEvent> drained;
+		while (!(drained = store.drain(100)).isEmpty())
+			events.addAll(drained);
+		return events;
+	}
+
+	@Test
+	public void keepsTheEventsOfConcurrentThreadsInOrderAcrossSegments() throws Exception {
+		final MappedLogStore store = new MappedLogStore(directory, SEGMENT_SIZE, 1024L * SEGMENT_SIZE);
+		final int threads = 8;
+		final int eventsPerThread = 2000;
+
+		List<Thread> writers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final long threadId = t;
+			writers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < eventsPerThread; i++)
+						assertTrue(store.append(event(threadId, i)));
+				}
+			}));
+		}
+		for (Thread writer : writers)
+			writer.start();
+
+		// Drained while the threads write
+		List<ApiLogEvent> events = new ArrayList<>();
+		for (Thread writer : writers) {
+			while (writer.isAlive())
+				events.addAll(store.drain(100));
+		}
+		events.addAll(drainAll(store));
+
+		assertEquals(threads * eventsPerThread, events.size());
+		Map<Long, Long> next = new HashMap<>();
+		for (ApiLogEvent event : events) {
+			Long expected = next.containsKey(event.threadId) ? next.get(event.threadId) : 0L;
+			assertEquals((long) expected, event.epochNanos);
+			assertEquals("log " + event.threadId + " " + event.epochNanos, event.payload);
+			next.put(event.threadId, expected + 1);
+		}
+
+		// Only the last segment is left
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void rejectsEventsOnceFullUntilAcknowledged() throws Exception {
+		MappedLogStore store = new MappedLogStore(directory, SEGMENT_SIZE, 2L * SEGMENT_SIZE);
+
+		int stored = 0;
+		while (store.append(event(1, stored)))
+			stored++;
+		assertTrue(stored > 0);
+		assertFalse(store.append(event(1, stored)));
+
+		assertEquals(stored, drainAll(store).size());
+		assertTrue(store.append(event(1, stored)));
+	}
+
+	@Test
+	public void reopensTheEventsLeftByAPreviousProcess() throws Exception {
+		MappedLogStore store = new MappedLogStore(directory, SEGMENT_SIZE, 1024L * SEGMENT_SIZE);
+		for (int i = 0; i < 500; i++)
+			store.append(event(1, i));
+		store.drain(100);
+
+		MappedLogStore reopened = new MappedLogStore(directory, SEGMENT_SIZE, 1024L * SEGMENT_SIZE);
+		List<ApiLogEvent> events = drainAll(reopened);
+		assertEquals(400, events.size());
+		assertEquals(100, events.get(0).epochNanos);
+		assertEquals(499, events.get(events.size() - 1).epochNanos);
+	}
+
+	@Test
+	public void regionsStayReadableAfterTheirSegmentIsAcknowledged() throws Exception {
+		MappedLogStore store = new MappedLogStore(directory, SEGMENT_SIZE, 1024L * SEGMENT_SIZE);
+		int count = 0;
+		while (directory.list().length < 3)
+			store.append(event(1, count++));
+
+		FileRegion region = store.nextRegion(-1);
+		long size = region.size() - region.header.length;
+		assertTrue(size > 0);
+
+		// Another connection takes the logs meanwhile, the segment of the region is acknowledged but kept
+		assertEquals(count, drainAll(store).size());
+		assertEquals(2, directory.list().length);
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		while (region.hasRemaining())
+			region.transferTo(Channels.newChannel(content));
+		assertEquals(size, content.size());
+
+		region.release();
+		region.release();
+		assertEquals(1, directory.list().length);
+	}
+}
@@ -0,0 +1,78 @@
+package org.droidmate.monitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+public class MonitorSelectorServerRunnableTest {
+	private EchoServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = EchoServer.start(ServerMode.Selector);
+	}
+
+	@After
+	public void tearDown() {
+		server.closeServerSocket();
+	}
+
+	@Test
+	public void answersJavaRequestsReceivedInPieces() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SerializationHelper.writeObjectToStream(new DataOutputStream(bytes), "getLogs");
+		byte[] request = bytes.toByteArray();
+
+		try (Socket socket = server.connect()) {
+			OutputStream output = socket.getOutputStream();
+			for (byte b : request) {
+				output.write(b);
+				output.flush();
+				Thread.sleep(5);
+			}
+
+			Object response = SerializationHelper.readObjectFromStream(new DataInputStream(socket.getInputStream()));
+			assertEquals("GETLOGS", response);
+		}
+	}
+
+	@Test
+	public void answersPipelinedRequestsInOrder() throws Exception {
+		try (Socket socket = server.connect()) {
+			OutputStream output = socket.getOutputStream();
+			output.write(EchoServer.wireRequest("slow:200"));
+			output.write(EchoServer.wireRequest("first"));
+			output.write(EchoServer.wireRequest("second"));
+			output.flush();
+
+			InputStream input = socket.getInputStream();
+			assertEquals("SLOW:200", EchoServer.readWireResponse(input));
+			assertEquals("FIRST", EchoServer.readWireResponse(input));
+			assertEquals("SECOND", EchoServer.readWireResponse(input));
+		}
+	}
+
+	@Test
+	public void answersOtherConnectionsWhileAnswering() throws Exception {
+		try (Socket slow = server.connect(); Socket other = server.connect()) {
+			slow.getOutputStream().write(EchoServer.wireRequest("slow:1000"));
+			Thread.sleep(50);
+
+			other.getOutputStream().write(EchoServer.wireRequest("check"));
+			assertEquals("CHECK", EchoServer.readWireResponse(other.getInputStream()));
+			// The slow request is still being answered
+			assertEquals(0, slow.getInputStream().available());
+
+			assertEquals("SLOW:1000", EchoServer.readWireResponse(slow.getInputStream()));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SerializationHelperTest {
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SerializationHelper.writeObjectToStream(new DataOutputStream(bytes), object);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void tellsCompleteStringsFromPartialOnes() throws Exception {
+		byte[] request = serialize("getLogs");
+
+		for (int length = 0; length < request.length; length++) {
+			ByteBuffer partial = ByteBuffer.wrap(request, 0, length);
+			assertEquals(-1, SerializationHelper.getSerializedStringLength(partial));
+			assertEquals(0, partial.position());
+		}
+
+		// Followed by the next request
+		ByteBuffer buffer = ByteBuffer.allocate(request.length + 10);
+		buffer.put(request).put(new byte[10]).flip();
+		assertEquals(request.length, SerializationHelper.getSerializedStringLength(buffer));
+	}
+
+	@Test
+	public void readsLongStrings() throws Exception {
+		char[] chars = new char[70000];
+		Arrays.fill(chars, 'x');
+		byte[] request = serialize(new String(chars));
+
+		assertEquals(request.length, SerializationHelper.getSerializedStringLength(ByteBuffer.wrap(request)));
+		assertEquals(-1, SerializationHelper.getSerializedStringLength(ByteBuffer.wrap(request, 0, request.length - 1)));
+	}
+
+	@Test
+	public void rejectsOtherObjects() throws Exception {
+		try {
+			SerializationHelper.getSerializedStringLength(ByteBuffer.wrap(serialize(new ArrayList<String>())));
+			fail("Accepted a list");
+		} catch (StreamCorruptedException e) {
+			// Expected
+		}
+
+		try {
+			SerializationHelper.getSerializedStringLength(ByteBuffer.wrap("getLogs".getBytes("UTF-8")));
+			fail("Accepted bytes without stream header");
+		} catch (StreamCorruptedException e) {
+			// Expected
+		}
+	}
+}
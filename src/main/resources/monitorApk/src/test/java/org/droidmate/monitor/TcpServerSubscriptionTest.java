@@ -0,0 +1,67 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static org.junit.Assert.assertEquals;
+
+public class TcpServerSubscriptionTest {
+	private static byte[] javaRequest(String command) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SerializationHelper.writeObjectToStream(new DataOutputStream(bytes), command);
+		return bytes.toByteArray();
+	}
+
+	private static Object subscribe(EchoServer server) throws Exception {
+		try (Socket socket = server.connect()) {
+			socket.getOutputStream().write(EchoServer.wireRequest("subscribe"));
+			return EchoServer.readWireResponse(socket.getInputStream());
+		}
+	}
+
+	private static void refusesLegacySubscriptionsWithoutSubscribing(ServerMode mode) throws Exception {
+		EchoServer server = EchoServer.start(mode);
+		try {
+			try (Socket legacy = server.connect()) {
+				legacy.getOutputStream().write(javaRequest("subscribe"));
+				assertEquals("0", SerializationHelper.readObjectFromStream(new DataInputStream(legacy.getInputStream())));
+			}
+
+			try (Socket subscriber = server.connect()) {
+				OutputStream output = subscriber.getOutputStream();
+				InputStream input = subscriber.getInputStream();
+				output.write(EchoServer.wireRequest("subscribe"));
+				assertEquals("1", EchoServer.readWireResponse(input));
+				assertEquals("PUSH", EchoServer.readWireResponse(input));
+
+				// Only one connection is subscribed at a time
+				assertEquals("0", subscribe(server));
+			}
+
+			// The subscription is released once the push stream notices that the host went away
+			long deadline = System.currentTimeMillis() + 10 * 1000;
+			Object answer;
+			while (!"1".equals(answer = subscribe(server)) && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			assertEquals("1", answer);
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	public void blockingServerRefusesLegacySubscriptionsWithoutSubscribing() throws Exception {
+		refusesLegacySubscriptionsWithoutSubscribing(ServerMode.Blocking);
+	}
+
+	@Test
+	public void selectorServerRefusesLegacySubscriptionsWithoutSubscribing() throws Exception {
+		refusesLegacySubscriptionsWithoutSubscribing(ServerMode.Selector);
+	}
+}
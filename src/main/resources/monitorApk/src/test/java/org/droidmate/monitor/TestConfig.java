@@ -0,0 +1,49 @@
+package org.droidmate.monitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the configuration and API table of the monitor for unit tests.
+ */
+final class TestConfig {
+	private TestConfig() {
+	}
+
+	/**
+	 * @param lines Lines of the properties file, e.g. {@code "logs.capacity=2"}
+	 */
+	static MonitorConfig of(String... lines) throws IOException {
+		File file = File.createTempFile("monitor", ".properties");
+		file.deleteOnExit();
+
+		StringBuilder content = new StringBuilder();
+		for (String line : lines)
+			content.append(line).append('\n');
+
+		try (OutputStream output = new FileOutputStream(file)) {
+			output.write(content.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return MonitorConfig.load(file);
+	}
+
+	/**
+	 * @param methods APIs as {@code <class>.<method>(<parameter types>)}, e.g. {@code "android.util.Log.d(java.lang.String)"}
+	 */
+	static ApiTable apis(String... methods) {
+		ApiTable.Entry[] entries = new ApiTable.Entry[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			String method = methods[i];
+			String name = method.substring(0, method.indexOf('('));
+			String params = method.substring(method.indexOf('(') + 1, method.length() - 1);
+
+			int separator = name.lastIndexOf('.');
+			entries[i] = new ApiTable.Entry(method, name.substring(0, separator), name.substring(separator + 1), "void",
+					params.isEmpty() ? new String[0] : params.split(","));
+		}
+		return new ApiTable(entries);
+	}
+}
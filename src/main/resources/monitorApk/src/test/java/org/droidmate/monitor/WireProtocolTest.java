@@ -0,0 +1,207 @@
+package org.droidmate.monitor;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WireProtocolTest {
+	private static final String DICTIONARY = "android.util.Log";
+
+	/**
+	 * Frame of a request, as written by the host
+	 */
+	private static byte[] request(String command, int flags) {
+		byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+		return new BinaryWriter()
+				.writeByte('D').writeByte('M').writeByte(WireProtocol.VERSION).writeByte(flags)
+				.writeVarInt(payload.length)
+				.writeBytes(payload)
+				.toByteArray();
+	}
+
+	private static final class Response {
+		final int flags;
+		final byte[] payload;
+
+		Response(byte[] frame) throws IOException {
+			BinaryReader reader = new BinaryReader(frame);
+			assertEquals('D', reader.readByte());
+			assertEquals('M', reader.readByte());
+			assertEquals(WireProtocol.VERSION, reader.readByte());
+			flags = reader.readByte();
+			payload = reader.readBytes(reader.readVarInt());
+			assertFalse(reader.hasRemaining());
+		}
+	}
+
+	/**
+	 * Decodes a {@link WireProtocol#TYPE_TABLE} payload, as the host does
+	 */
+	private static List<List<String>> decodeTable(byte[] payload) throws IOException {
+		BinaryReader reader = new BinaryReader(payload);
+		assertEquals(WireProtocol.TYPE_TABLE, reader.readByte());
+
+		String[] strings = new String[reader.readVarInt()];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = reader.readString();
+
+		List<List<String>> rows = new ArrayList<>();
+		int rowCount = reader.readVarInt();
+		for (int i = 0; i < rowCount; i++) {
+			List<String> row = new ArrayList<>();
+			int columnCount = reader.readVarInt();
+			for (int j = 0; j < columnCount; j++) {
+				int index = reader.readVarInt();
+				row.add((index == 0) ? null : strings[index - 1]);
+			}
+			rows.add(row);
+		}
+		assertFalse(reader.hasRemaining());
+		return rows;
+	}
+
+	private static ArrayList<ArrayList<String>> logs() {
+		ArrayList<ArrayList<String>> rows = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			rows.add(new ArrayList<>(Arrays.asList("1234", "2018-01-01 00:00:0" + (i % 10), "android.util.Log.d", null)));
+		return rows;
+	}
+
+	@Test
+	public void readsRequests() throws Exception {
+		byte[] frame = request("getLogs", WireProtocol.FLAG_KEEP_ALIVE | WireProtocol.FLAG_ACCEPT_DEFLATE);
+		BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(frame));
+
+		assertTrue(WireProtocol.isWireFrame(input));
+		WireProtocol.Request request = WireProtocol.readRequest(new DataInputStream(input));
+
+		assertEquals("getLogs", request.command);
+		assertTrue(request.isKeepAlive());
+		assertTrue(request.acceptsDeflate());
+		assertEquals(-1, input.read());
+	}
+
+	@Test
+	public void parsesRequestsOnlyOnceCompletelyReceived() throws Exception {
+		byte[] frame = request("connCheck", 0);
+		ByteBuffer buffer = ByteBuffer.allocate(frame.length * 2);
+
+		for (int i = 0; i < frame.length; i++) {
+			buffer.put(frame[i]);
+			buffer.flip();
+			if (i < frame.length - 1) {
+				assertNull(WireProtocol.parseRequest(buffer));
+				assertEquals(0, buffer.position());
+			}
+			buffer.compact();
+		}
+
+		buffer.put(request("getTime", WireProtocol.FLAG_KEEP_ALIVE));
+		buffer.flip();
+
+		WireProtocol.Request first = WireProtocol.parseRequest(buffer);
+		assertEquals("connCheck", first.command);
+		assertFalse(first.isKeepAlive());
+		assertFalse(first.acceptsDeflate());
+
+		WireProtocol.Request second = WireProtocol.parseRequest(buffer);
+		assertEquals("getTime", second.command);
+		assertTrue(second.isKeepAlive());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void tellsWireFramesFromJavaSerialization() throws Exception {
+		assertTrue(WireProtocol.isWireFrame(ByteBuffer.wrap(request("getTime", 0))));
+		assertFalse(WireProtocol.isWireFrame(ByteBuffer.wrap(new byte[]{(byte) 0xAC, (byte) 0xED})));
+		assertFalse(WireProtocol.isWireFrame(new BufferedInputStream(new ByteArrayInputStream(new byte[]{(byte) 0xAC, (byte) 0xED}))));
+
+		// Both magic bytes are checked, and both are needed to decide
+		assertFalse(WireProtocol.isWireFrame(ByteBuffer.wrap(new byte[]{'D', 'X'})));
+		assertFalse(WireProtocol.isWireFrame(ByteBuffer.wrap(new byte[]{'D'})));
+	}
+
+	@Test
+	public void requestAndResponseFlagsAreDistinct() {
+		int[] flags = {WireProtocol.FLAG_KEEP_ALIVE, WireProtocol.FLAG_PUSH, WireProtocol.FLAG_ACCEPT_DEFLATE, WireProtocol.FLAG_DEFLATE};
+		int all = 0;
+		for (int flag : flags) {
+			assertEquals(0, all & flag);
+			all |= flag;
+		}
+	}
+
+	@Test
+	public void encodesRowsOfStringsAsTables() throws Exception {
+		ArrayList<ArrayList<String>> rows = logs();
+		Response response = new Response(WireProtocol.encodeResponse(rows, WireProtocol.FLAG_PUSH, null));
+
+		assertEquals(WireProtocol.FLAG_PUSH, response.flags);
+		assertEquals(rows, decodeTable(response.payload));
+	}
+
+	@Test
+	public void encodesBytesAsTheyAre() throws Exception {
+		byte[] bytes = new byte[]{1, 2, 3};
+		Response response = new Response(WireProtocol.encodeResponse(bytes, 0, null));
+
+		assertEquals(WireProtocol.TYPE_BYTES, response.payload[0]);
+		assertArrayEquals(bytes, Arrays.copyOfRange(response.payload, 1, response.payload.length));
+	}
+
+	@Test
+	public void encodesOtherResponsesWithJavaSerialization() throws Exception {
+		ArrayList<Serializable> value = new ArrayList<>();
+		value.add(42L);
+		value.add("text");
+		Response response = new Response(WireProtocol.encodeResponse(value, 0, null));
+
+		assertEquals(WireProtocol.TYPE_JAVA, response.payload[0]);
+		ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(response.payload, 1, response.payload.length - 1));
+		assertEquals(value, input.readObject());
+	}
+
+	@Test
+	public void compressesLargeResponsesWithTheDictionary() throws Exception {
+		ArrayList<ArrayList<String>> rows = logs();
+		Response response = new Response(WireProtocol.encodeResponse(rows, 0, new WireCompression(DICTIONARY, 64)));
+
+		assertEquals(WireProtocol.FLAG_DEFLATE, response.flags);
+
+		Inflater inflater = new Inflater();
+		inflater.setInput(response.payload);
+		byte[] payload = new byte[64 * 1024];
+		int size = inflater.inflate(payload);
+		assertTrue(inflater.needsDictionary());
+		inflater.setDictionary(DICTIONARY.getBytes(StandardCharsets.UTF_8));
+		size += inflater.inflate(payload, size, payload.length - size);
+		assertTrue(inflater.finished());
+
+		assertEquals(rows, decodeTable(Arrays.copyOf(payload, size)));
+	}
+
+	@Test
+	public void doesNotCompressSmallResponses() throws Exception {
+		Response response = new Response(WireProtocol.encodeResponse(new byte[]{1}, 0, new WireCompression(DICTIONARY, 64)));
+
+		assertEquals(0, response.flags);
+		assertEquals(2, response.payload.length);
+	}
+}
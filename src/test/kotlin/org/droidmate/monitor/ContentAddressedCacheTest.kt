@@ -0,0 +1,85 @@
+package org.droidmate.monitor
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+@RunWith(JUnit4::class)
+class ContentAddressedCacheTest {
+    private val workingDir = Files.createTempDirectory("cache")
+
+    private fun file(name: String, size: Int): Path {
+        return Files.write(workingDir.resolve(name), ByteArray(size) { it.toByte() })
+    }
+
+    @Test
+    fun `Keys depend on the content and order of the inputs`() {
+        val a = file("a", 10)
+        val b = file("b", 20)
+
+        assertEquals(ContentAddressedCache.Key().add(a).add("x").build(), ContentAddressedCache.Key().add(a).add("x").build())
+        assertNotEquals(ContentAddressedCache.Key().add(a).add("x").build(), ContentAddressedCache.Key().add(b).add("x").build())
+        assertNotEquals(ContentAddressedCache.Key().add("ab").add("c").build(), ContentAddressedCache.Key().add("a").add("bc").build())
+    }
+
+    @Test
+    fun `Returns stored entries and evicts the least recently used ones`() {
+        val cache = ContentAddressedCache(workingDir.resolve("entries"), 250, ".apk")
+        val target = workingDir.resolve("out.apk")
+
+        assertFalse(cache.get("first", target))
+
+        cache.put("first", file("first", 100))
+        cache.put("second", file("second", 100))
+        Files.setLastModifiedTime(cache.directory.resolve("first.apk"), FileTime.fromMillis(1000))
+        Files.setLastModifiedTime(cache.directory.resolve("second.apk"), FileTime.fromMillis(2000))
+
+        // Reading the first entry makes the second one the least recently used
+        assertTrue(cache.get("first", target))
+        assertArrayEquals(Files.readAllBytes(workingDir.resolve("first")), Files.readAllBytes(target))
+
+        cache.put("third", file("third", 100))
+
+        assertTrue(cache.get("first", target))
+        assertFalse(cache.get("second", target))
+        assertTrue(cache.get("third", target))
+    }
+
+    @Test
+    fun `Evicts entries not used for too long`() {
+        val cache = ContentAddressedCache(workingDir.resolve("aged"), 1000, ".apk", maxAgeMillis = 60 * 1000)
+        val target = workingDir.resolve("out.apk")
+
+        cache.put("old", file("old", 10))
+        Files.setLastModifiedTime(cache.directory.resolve("old.apk"), FileTime.fromMillis(System.currentTimeMillis() - 120 * 1000))
+        cache.put("new", file("new", 10))
+
+        assertFalse(cache.get("old", target))
+        assertTrue(cache.get("new", target))
+        assertArrayEquals(Files.readAllBytes(workingDir.resolve("new")), Files.readAllBytes(target))
+    }
+
+    @Test
+    fun `Copies entries unless linking is requested`() {
+        val cache = ContentAddressedCache(workingDir.resolve("linked"), 1000, ".apk")
+        val copy = workingDir.resolve("copy.apk")
+        val link = workingDir.resolve("link.apk")
+
+        cache.put("entry", file("entry", 10))
+        assertTrue(cache.get("entry", copy))
+        assertTrue(cache.get("entry", link, link = true))
+
+        // Modifying the copy leaves the entry unchanged
+        Files.write(copy, ByteArray(5))
+        assertArrayEquals(Files.readAllBytes(workingDir.resolve("entry")), Files.readAllBytes(cache.directory.resolve("entry.apk")))
+        assertArrayEquals(Files.readAllBytes(cache.directory.resolve("entry.apk")), Files.readAllBytes(link))
+    }
+}
@@ -0,0 +1,38 @@
+package org.droidmate.monitor
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/**
+ * The files in [fixturesDir] were written by the monitor's MappedLogStore: a store with [textLog] and [record], the
+ * first one acknowledged, and the answer to `getLogStore` which followed. The encoded content of a third log was then
+ * written after the last record, without its length, as left by a crash while the log was appended.
+ */
+@RunWith(JUnit4::class)
+class JournalReaderTest {
+    private val fixturesDir = Paths.get("src/test/kotlin/org/droidmate/monitor/resources/journal")
+
+    private val textLog = JournalEvent("android.net.Uri.parse(java.lang.String)", 3, 1, 1000, "TId: 1", -1, null)
+    private val record = JournalEvent("android.net.Uri.parse(java.lang.String)", 3, 2, 2000, null, 7, listOf("http://a", null))
+
+    @Test
+    fun `Reads records after the acknowledged offset and stops at an interrupted record`() {
+        val directory = fixturesDir.resolve("store")
+
+        assertEquals(listOf(record), JournalReader.readDirectory(directory))
+        assertEquals(listOf(textLog, record), JournalReader.readDirectory(directory, includeAcknowledged = true))
+    }
+
+    @Test
+    fun `Decodes a getLogStore answer`() {
+        val region = JournalReader.decodeRegion(Files.readAllBytes(fixturesDir.resolve("region.bin")))
+
+        assertEquals(57L, region.startOffset)
+        assertEquals(118L, region.endOffset)
+        assertEquals(listOf(record), region.events)
+    }
+}